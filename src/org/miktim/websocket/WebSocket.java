@@ -15,12 +15,21 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.ServerSocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.net.ServerSocketFactory;
@@ -42,12 +51,16 @@ public class WebSocket {
      * Current package version {@value VERSION}.
      */
     public static final String VERSION = "5.0.6";
+    static final WsTimer timer = new WsTimer(); // shared handshake timer
+    static final int CONNECT_TIMEOUT = 10000; // millis, connectAsync handshake deadline if no SO_TIMEOUT
 
     private InetAddress interfaceAddress = null;
-    private final List<WsConnection> connections = Collections.synchronizedList(new ArrayList<WsConnection>());
+    private final WsRegistry connections = new WsRegistry();
     private final List<WsServer> servers = Collections.synchronizedList(new ArrayList<WsServer>());
-    private File storeFile = null;
-    private String storePassword = null;
+    private volatile File storeFile = null;
+    private volatile String storePassword = null;
+    private int connectConcurrency = 64; // asynchronous connects limit
+    private ThreadPoolExecutor connectExecutor = null;
 
     /**
      * Creates a WebSocket factory.
@@ -95,6 +108,27 @@ public class WebSocket {
         System.setProperty("javax.net.ssl.keyStorePassword", password);
     }
 
+    /**
+     * Returns the number of payload buffers taken from the shared pool.
+     *
+     * @return pool hits since the start of the Java VM.
+     * @since 5.1
+     */
+    public static long getBufferPoolHits() {
+        return WsBufferPool.hits();
+    }
+
+    /**
+     * Returns the number of payload buffers allocated
+     * because the shared pool had no buffer of the required size.
+     *
+     * @return pool misses since the start of the Java VM.
+     * @since 5.1
+     */
+    public static long getBufferPoolMisses() {
+        return WsBufferPool.misses();
+    }
+
     /**
      * Converts host name to Internationalized Domain Names (IDNs) format and
      * creates URI.
@@ -156,7 +190,32 @@ public class WebSocket {
      * @return array of client connections within this WebSocket instance.
      */
     public WsConnection[] listConnections() {
-        return connections.toArray(new WsConnection[0]);
+        return connections.toArray();
+    }
+
+    /**
+     * Returns active client connections view.
+     * <br>The view is unmodifiable and weakly consistent: the iteration
+     * does not copy the connections, does not block the registry
+     * and may not reflect changes made after the iteration started.
+     *
+     * @return client connections within this WebSocket instance.
+     * @since 5.1
+     */
+    public Collection<WsConnection> getConnections() {
+        return connections.view();
+    }
+
+    /**
+     * Returns active client connection by id.
+     *
+     * @param id connection id.
+     * @return connection or null if no such connection.
+     * @see WsConnection#getConnectionId()
+     * @since 5.1
+     */
+    public WsConnection getConnection(long id) {
+        return connections.get(id);
     }
 
     /**
@@ -183,7 +242,7 @@ public class WebSocket {
         for (WsServer server : listServers()) {
             server.stopServer(reason);
         }
-        for (WsConnection conn : listConnections()) {
+        for (WsConnection conn : connections) {
             conn.close(WsStatus.GOING_AWAY, reason);
         }
     }
@@ -292,6 +351,39 @@ public class WebSocket {
         }
         wsp = wsp.deepClone();
 
+        ServerSocket serverSocket = openServerSocket(wsp, isSecure);
+        boolean sharding = wsp.acceptors > 1 && wsp.reusePort
+                && WsServer.setReusePort(serverSocket);
+        ServerSocket[] serverSockets = new ServerSocket[sharding ? wsp.acceptors : 1];
+        serverSockets[0] = serverSocket;
+        try {
+            serverSocket.bind(new InetSocketAddress(interfaceAddress, port), wsp.backlog);
+            for (int i = 1; i < serverSockets.length; i++) {
+                serverSockets[i] = openServerSocket(wsp, isSecure);
+                WsServer.setReusePort(serverSockets[i]);
+                serverSockets[i].bind(new InetSocketAddress(interfaceAddress,
+                        serverSocket.getLocalPort()), wsp.backlog);
+            }
+        } catch (IOException e) {
+            for (ServerSocket ss : serverSockets) {
+                if (ss != null) {
+                    ss.close();
+                }
+            }
+            throw e;
+        }
+        for (ServerSocket ss : serverSockets) {
+            ss.setSoTimeout(0);
+        }
+        WsServer server
+                = new WsServer(serverSockets, handler, isSecure, wsp);
+        server.servers = this.servers; // set backlink to the WebSocket server list
+        return server;
+    }
+
+    // creates unbound server socket
+    ServerSocket openServerSocket(WsParameters wsp, boolean isSecure)
+            throws IOException, GeneralSecurityException {
         ServerSocket serverSocket;
         if (isSecure) {
             ServerSocketFactory serverSocketFactory;
@@ -301,8 +393,7 @@ public class WebSocket {
             } else {
                 serverSocketFactory = SSLServerSocketFactory.getDefault();
             }
-            serverSocket = serverSocketFactory
-                    .createServerSocket(port, wsp.backlog, interfaceAddress);
+            serverSocket = serverSocketFactory.createServerSocket();
 
             SSLParameters sslp = wsp.getSSLParameters();
             if (sslp != null) {
@@ -313,15 +404,17 @@ public class WebSocket {
 // TODO: downgrade Android API 24 to API 16
 //            ((SSLServerSocket) serverSocket).setSSLParameters(wsp.sslParameters);
             }
+        } else if (wsp.selectors != 0) {
+// non-blocking server engine, see WsSelector
+            serverSocket = ServerSocketChannel.open().socket();
+            serverSocket.setReuseAddress(true);
         } else {
-            serverSocket = new ServerSocket(port, wsp.backlog, interfaceAddress);
+            serverSocket = new ServerSocket();
         }
-
-        serverSocket.setSoTimeout(0);
-        WsServer server
-                = new WsServer(serverSocket, handler, isSecure, wsp);
-        server.servers = this.servers; // set backlink to the WebSocket server list
-        return server;
+        if (wsp.receiveBufferSize > 0) { // inherited by the accepted sockets
+            serverSocket.setReceiveBufferSize(wsp.receiveBufferSize);
+        }
+        return serverSocket;
     }
 
     /**
@@ -343,7 +436,7 @@ public class WebSocket {
      * @see #setTrustStore(String, String)
      * @see #setKeyFile(File, String)
      */
-    synchronized public WsConnection connect(String uri,
+    public WsConnection connect(String uri,
             WsConnection.Handler handler, WsParameters wsp) {
 //            throws URISyntaxException, IOException, GeneralSecurityException {
         return startConnection(uri, handler, wsp);
@@ -362,6 +455,124 @@ public class WebSocket {
         return connect(uri, handler, new WsParameters());
     }
 
+    /**
+     * Creates and starts WebSocket client connection asynchronously.
+     * <p>
+     * The TCP connect, TLS and WebSocket handshakes of the connections
+     * run in parallel, the number of concurrent connects is limited.
+     * The connection handler is called as usual.
+     * The future completes when the WebSocket handshake is done.
+     * Cancelling the future closes the connection being opened.
+     * If the handshake timeout of the parameters is 0, the opening
+     * handshake is limited to 10 seconds.
+     * </p>
+     * See: {@link WebSocket#connect(String, WsConnection.Handler, WsParameters)} for details
+     *
+     * @return future of the open WebSocket connection. The future
+     * {@link java.util.concurrent.ExecutionException} cause is the
+     * {@link WsError} on connection creation or handshake error.
+     * @see #setConnectConcurrency(int)
+     * @since 5.1
+     */
+    public Future<WsConnection> connectAsync(final String uri,
+            final WsConnection.Handler handler, final WsParameters wsp) {
+        FutureTask<WsConnection> future = new FutureTask<WsConnection>(
+                new Callable<WsConnection>() {
+            @Override
+            public WsConnection call() throws Exception {
+                final WsConnection conn = startConnection(uri, handler, wsp);
+// without the SO_TIMEOUT the connection has no opening deadline:
+// a silent peer would hold the connect thread forever
+                WsTimer.Task deadline = null;
+                if (wsp.handshakeSoTimeout <= 0) {
+                    deadline = timer.schedule(new WsTimer.Task() {
+                        @Override
+                        public void run() {
+                            if (conn.status.code == WsStatus.IS_INACTIVE) {
+                                WsConnection.closers().execute(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        conn.closeSocket(); // fails the handshake
+                                    }
+                                });
+                            }
+                        }
+                    }, CONNECT_TIMEOUT);
+                }
+                try {
+                    synchronized (conn) {
+                        while (conn.status.code == WsStatus.IS_INACTIVE) {
+                            conn.wait(); // see WsConnection.run
+                        }
+                    }
+                } catch (InterruptedException e) { // cancelled
+                    conn.closeSocket();
+                    throw e;
+                } finally {
+                    if (deadline != null) {
+                        deadline.cancel();
+                    }
+                }
+                if (conn.status.code != WsStatus.IS_OPEN) {
+                    throw new WsError("Handshake error", conn.status.error);
+                }
+                return conn;
+            }
+        });
+        connectExecutor().execute(future);
+        return future;
+    }
+
+    /**
+     * Sets the maximum number of concurrent asynchronous connects.
+     *
+     * @param num number of connects (min value is 1).
+     * @see #connectAsync(String, WsConnection.Handler, WsParameters)
+     * @since 5.1
+     */
+    synchronized public void setConnectConcurrency(int num) {
+        num = Math.max(1, num);
+        if (connectExecutor != null) {
+            if (num > connectConcurrency) {
+                connectExecutor.setMaximumPoolSize(num);
+                connectExecutor.setCorePoolSize(num);
+            } else {
+                connectExecutor.setCorePoolSize(num);
+                connectExecutor.setMaximumPoolSize(num);
+            }
+        }
+        connectConcurrency = num;
+    }
+
+    /**
+     * Returns the maximum number of concurrent asynchronous connects.
+     *
+     * @return number of connects. Default: 64.
+     * @since 5.1
+     */
+    synchronized public int getConnectConcurrency() {
+        return connectConcurrency;
+    }
+
+    synchronized ThreadPoolExecutor connectExecutor() {
+        if (connectExecutor == null) {
+            connectExecutor = new ThreadPoolExecutor(
+                    connectConcurrency, connectConcurrency,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r);
+                    t.setName("WsConnect" + t.getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            connectExecutor.allowCoreThreadTimeOut(true);
+        }
+        return connectExecutor;
+    }
+
     WsConnection startConnection (
             String uri, WsConnection.Handler handler, WsParameters wsp) {
 //            throws URISyntaxException, GeneralSecurityException, IOException {
@@ -374,7 +585,7 @@ public class WebSocket {
         }
     }
 
-    synchronized WsConnection createConnection(
+    WsConnection createConnection(
             String uri, WsConnection.Handler handler, WsParameters wsp)
             throws URISyntaxException, IOException, GeneralSecurityException {
         if (uri == null || handler == null || wsp == null) {
@@ -409,6 +620,7 @@ public class WebSocket {
             socket = new Socket();
         }
         socket.setReuseAddress(true); // 
+        WsIo.setSocketOptions(socket, wsp); // before the TCP handshake
         socket.bind(new InetSocketAddress(interfaceAddress, 0));
         int port = requestURI.getPort();
         if (port < 0) {
@@ -419,7 +631,11 @@ public class WebSocket {
                         requestURI.getHost(), port), wsp.handshakeSoTimeout);
 
         WsConnection conn = new WsConnection(socket, handler, wsp, requestURI);
-        conn.connections = this.connections; // set backlink to the connections list
+        conn.connections = this.connections; // set backlink to the connections registry
+        WsBudget budget = WsBudget.create(wsp); // own budget of the client connection
+        if (budget != null) {
+            conn.inbound = budget.open(conn);
+        }
         return conn;
     }
 
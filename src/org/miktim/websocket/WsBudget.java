@@ -0,0 +1,234 @@
+/*
+ * WsBudget. MIT (c) 2026 miktim@mail.ru
+ * Byte budget of the buffered incoming payloads of the server
+ * (or the client connection). See WsParameters.setInboundBudget
+ *
+ * The connection over the budget stops reading the socket and TCP flow
+ * control pushes back the sender. The connection waits only if it holds
+ * the messages passed to the handler: the handler releases the bytes
+ * when it reads the message or returns from onMessage. The message being
+ * received is not counted (the handler may wait for its payload), the
+ * message limit is checked only before the next message. So the connection
+ * can always receive at least one message, the budget can be exceeded
+ * by the incomplete message and the last read chunk.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class WsBudget {
+
+    static final long AWAIT_INTERVAL = 100; // millis, the socket closure check
+    static final int OWN = 1; // over the connection limits
+    static final int SHARED = 2; // over the shared budget
+
+    private final long limit; // bytes, 0 - unlimited
+    private final long connectionLimit; // bytes, 0 - unlimited
+    private final int maxMessages;
+// j.u.c. lock does not pin the virtual thread carrier while waiting
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+// selector channels paused by the shared budget, in the pause order
+    private final LinkedHashSet<Account> paused = new LinkedHashSet<Account>();
+    private long used = 0;
+
+    private WsBudget(WsParameters wsp) {
+        limit = wsp.inboundBudget;
+        connectionLimit = wsp.connectionInboundBudget;
+        maxMessages = wsp.maxMessages;
+    }
+
+    // returns null if the budget is not set
+    static WsBudget create(WsParameters wsp) {
+        if (wsp.inboundBudget > 0 || wsp.connectionInboundBudget > 0) {
+            return new WsBudget(wsp);
+        }
+        return null;
+    }
+
+    Account open(WsConnection conn) {
+        return new Account(conn);
+    }
+
+    // connection account, the methods are called by the reading thread
+    // and by the handler threads
+    class Account {
+
+        private final WsConnection conn;
+        private long used = 0; // bytes
+        private int messages = 0; // messages passed to the handler
+        private WsChannel channel = null; // paused selector channel
+        private WsMessage receiving = null; // incomplete message of the paused channel
+
+        private Account(WsConnection conn) {
+            this.conn = conn;
+        }
+
+        // under lock: current - the message being received or null,
+        // returns 0 (not throttled), OWN or SHARED
+        private int throttled(WsMessage current) {
+            int pending = messages;
+            long bytes = 0; // bytes of the current message
+            if (current != null) {
+                bytes = current.accounted;
+                if (current.dispatched) {
+                    pending--;
+                }
+            }
+            if (pending <= 0) {
+                return 0; // nothing to wait for
+            }
+            if (current == null && pending >= maxMessages) {
+                return OWN;
+            }
+            if (used <= bytes) {
+                return 0;
+            }
+            if (connectionLimit > 0 && used - bytes >= connectionLimit) {
+                return OWN;
+            }
+            return limit > 0 && WsBudget.this.used - bytes >= limit ? SHARED : 0;
+        }
+
+        void acquire(long len) {
+            lock.lock();
+            try {
+                used += len;
+                WsBudget.this.used += len;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void release(long len) {
+            lock.lock();
+            try {
+                used -= len;
+                WsBudget.this.used -= len;
+                released();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // the message is queued to the handler
+        void dispatched() {
+            lock.lock();
+            try {
+                messages++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // the handler has returned from onMessage
+        void handled() {
+            lock.lock();
+            try {
+                messages--;
+                released();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // under lock: wake up the waiting listeners, resume the selector channels.
+        // The channel paused by its own limits is resumed by its own release.
+        // The channels paused by the shared budget are resumed in order while
+        // the freed bytes admit them: the resumed channel reads up to
+        // the read buffer length before the next check
+        private void released() {
+            if (lock.hasWaiters(released)) {
+                released.signalAll();
+            }
+            if (channel != null) {
+                int state = throttled(receiving);
+                if (state == 0) {
+                    paused.remove(this);
+                    resume();
+                } else if (state == SHARED) {
+                    paused.add(this); // keeps the order if already queued
+                }
+            }
+            long admits = limit - WsBudget.this.used;
+            Iterator<Account> it = paused.iterator();
+            while (admits > 0 && it.hasNext()) {
+                Account account = it.next();
+                int state = account.throttled(account.receiving);
+                if (state == SHARED) {
+                    break; // the head waits for more freed bytes
+                }
+                it.remove();
+                if (state == 0) {
+                    account.resume();
+                    admits -= WsSelector.READ_BUFFER_LENGTH;
+                } // OWN: waits for its own release
+            }
+        }
+
+        // under lock
+        private void resume() {
+            channel.resume();
+            channel = null;
+            receiving = null;
+        }
+
+        // stream listener: waits while the connection is over the budget,
+        // current - the message being received or null
+        void await(WsMessage current) throws IOException {
+            lock.lock();
+            try {
+                while (throttled(current) != 0 && conn.isSocketOpen()) {
+                    released.await(AWAIT_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // selector channel: true if the channel should stop reading
+        // until resumed (see WsChannel.resume)
+        boolean pause(WsChannel ch, WsMessage current) {
+            lock.lock();
+            try {
+                int state = channel == null ? throttled(current) : 0;
+                if (state == 0) {
+                    return false;
+                }
+                channel = ch;
+                receiving = current;
+                if (state == SHARED) {
+                    paused.add(this);
+                }
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // the connection is finished
+        void close() {
+            lock.lock();
+            try {
+                if (channel != null) {
+                    paused.remove(this);
+                    channel = null;
+                    receiving = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * WsBufferPool. MIT (c) 2026 miktim@mail.ru
+ * Bounded shared pool of the payload buffers.
+ * Buffer lengths are powers of 2 from MIN_LENGTH to MAX_LENGTH,
+ * each size class holds a limited number of free buffers, the free bytes
+ * of the pool are limited too. Longer buffers are not pooled: the inbound
+ * chunks are at most 64 KiB (WsListener.MAX_CHUNK_LENGTH), the outbound
+ * frame buffers are payloadBufferLength (default 32 KiB) plus the header.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+class WsBufferPool {
+
+    static final int MIN_SHIFT = 8;
+    static final int MAX_SHIFT = 17;
+    static final int MIN_LENGTH = 1 << MIN_SHIFT; // 256 bytes
+    static final int MAX_LENGTH = 1 << MAX_SHIFT; // 128 KiB
+    static final int CLASS_BYTES = 4 << 20; // max free bytes per size class
+    static final long POOL_BYTES = 16 << 20; // max free bytes of the pool
+    static final int CLASS_BUFFERS = 1024; // max free buffers per size class
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ConcurrentLinkedQueue<byte[]>[] pool
+            = new ConcurrentLinkedQueue[MAX_SHIFT - MIN_SHIFT + 1];
+    private static final AtomicInteger[] free = new AtomicInteger[pool.length];
+    private static final AtomicLong freeBytes = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    static {
+        for (int i = 0; i < pool.length; i++) {
+            pool[i] = new ConcurrentLinkedQueue<byte[]>();
+            free[i] = new AtomicInteger();
+        }
+    }
+
+    // size class index
+    static int sizeClass(int length) {
+        if (length <= MIN_LENGTH) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SHIFT;
+    }
+
+    // returns a buffer of at least the specified length
+    static byte[] get(int length) {
+        if (length > MAX_LENGTH) {
+            misses.incrementAndGet();
+            return new byte[length];
+        }
+        int i = sizeClass(length);
+        byte[] buf = pool[i].poll();
+        if (buf != null) {
+            free[i].decrementAndGet();
+            freeBytes.addAndGet(-buf.length);
+            hits.incrementAndGet();
+            return buf;
+        }
+        misses.incrementAndGet();
+        return new byte[MIN_LENGTH << i];
+    }
+
+    // returns the buffer to the pool, the buffer must not be used further
+    static void put(byte[] buf) {
+        if (buf == null || buf.length < MIN_LENGTH || buf.length > MAX_LENGTH
+                || Integer.bitCount(buf.length) != 1) {
+            return; // not pooled
+        }
+        int i = sizeClass(buf.length);
+        if (free[i].incrementAndGet()
+                > Math.min(CLASS_BUFFERS, Math.max(4, CLASS_BYTES / buf.length))) {
+            free[i].decrementAndGet();
+            return; // the size class is full
+        }
+        if (freeBytes.addAndGet(buf.length) > POOL_BYTES) {
+            freeBytes.addAndGet(-buf.length);
+            free[i].decrementAndGet();
+            return; // the pool is full
+        }
+        pool[i].offer(buf);
+    }
+
+    static long hits() {
+        return hits.get();
+    }
+
+    static long misses() {
+        return misses.get();
+    }
+
+}
@@ -0,0 +1,589 @@
+/*
+ * WsChannel. MIT (c) 2026 miktim@mail.ru
+ * Non-blocking server-side connection: WebSocket handshake,
+ * parsing of the frames from the selector loop buffer, channel output.
+ * See also WsSelector, WsListener.
+ *
+ * The selector loop does not wait for the socket: the unsent output
+ * of the loop thread (up to MAX_BACKLOG bytes) is written on OP_WRITE.
+ * Other threads write the backlog before their own output.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+class WsChannel {
+
+    static final int MAX_HTTP_HEAD_LENGTH = 16384;
+    static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
+    static final int MAX_BACKLOG = 0x100000; // bytes, unsent output of the loop thread
+
+    final WsConnection conn;
+    final SocketChannel channel;
+    private final WsSelector loop;
+    SelectionKey key = null; // set by the selector loop
+    private volatile Selector writeSelector = null; // guarded by conn.outStream
+    private final ReentrantLock backlogLock = new ReentrantLock();
+    private byte[] backlog = null; // unsent output of the loop thread
+    private int backlogOff = 0;
+    private int backlogLen = 0;
+    private long lastRead = System.currentTimeMillis();
+    private volatile boolean finished = false;
+    private boolean paused = false; // over the inbound budget (see WsBudget)
+    private ByteArrayOutputStream httpHead = new ByteArrayOutputStream(512);
+    private int httpHeadEnd = 0; // CRLFCRLF counter
+
+// frame parser
+    private final byte[] header = new byte[14];
+    private int headerLen = 0;
+    private int headerNeed = 2;
+    private int b1;
+    private boolean maskedPayload;
+    private final byte[] payloadMask = new byte[4];
+    private long payloadLength;
+    private long payloadRead;
+    private byte[] payload = null; // current payload chunk
+    private int payloadOff;
+    private int chunkLen; // current payload chunk length
+    private boolean dataFrame;
+    private boolean skipPayload;
+    private boolean pingFrameSent = false;
+    private WsMessage messageStream = null;
+    private long messageLength;
+
+    WsChannel(WsConnection conn, WsSelector loop) {
+        this.conn = conn;
+        this.loop = loop;
+        this.channel = conn.socket.getChannel();
+    }
+
+    // called when the socket is closed by another thread
+    void closed() {
+        loop.notify(this);
+    }
+
+    // selector loop: the channel is readable
+    void read(ByteBuffer buf) {
+        buf.clear();
+        try {
+            if (channel.read(buf) < 0) {
+                throw new EOFException("Unexpected EOF");
+            }
+            lastRead = System.currentTimeMillis();
+            buf.flip();
+            if (httpHead != null) {
+                readHttpHead(buf);
+            }
+            while (buf.hasRemaining() && !finished) {
+                readFrame(buf);
+                if (conn.status.wasClean || !channel.isOpen()) {
+                    finish();
+                }
+            }
+            if (conn.inbound != null && !finished && conn.inbound.pause(this, messageStream)) {
+                paused = true; // TCP flow control pushes back the client
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        } catch (Throwable e) {
+            error(e);
+        }
+    }
+
+    void readHttpHead(ByteBuffer buf)
+            throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        while (buf.hasRemaining()) {
+            int b = buf.get();
+            httpHead.write(b);
+            httpHeadEnd = (b == '\n' || b == '\r') ? httpHeadEnd + 1 : 0;
+            if (httpHeadEnd == 4) {
+                break;
+            }
+            if (httpHead.size() > MAX_HTTP_HEAD_LENGTH) {
+                throw new ProtocolException("Invalid HTTP header");
+            }
+        }
+        if (httpHeadEnd < 4) {
+            return;
+        }
+        conn.inStream = new ByteArrayInputStream(httpHead.toByteArray());
+        conn.outStream = new Output();
+        httpHead = null;
+        synchronized (conn) {
+            try {
+                WsHandshake.handshake(conn);
+                conn.cancelCloseTimer();
+            } finally {
+                conn.notifyAll();
+            }
+        }
+        conn.dispatch(conn.subProtocol); // onOpen
+    }
+
+    void readFrame(ByteBuffer buf) throws IOException {
+        if (headerLen < headerNeed) {
+            int len = Math.min(headerNeed - headerLen, buf.remaining());
+            buf.get(header, headerLen, len);
+            headerLen += len;
+            if (headerLen == 2) {
+                headerNeed = 2 + ((header[1] & 0x7F) == 126 ? 2
+                        : (header[1] & 0x7F) == 127 ? 8 : 0)
+                        + ((header[1] & WsListener.MASKED_DATA) != 0 ? 4 : 0);
+            }
+            if (headerLen == headerNeed) {
+                frameHeader();
+            }
+            return;
+        }
+        if (!skipPayload) {
+            int len = Math.min(chunkLen - payloadOff, buf.remaining());
+            buf.get(payload, payloadOff, len);
+            payloadOff += len;
+            if (payloadOff == chunkLen) {
+                framePayload();
+            }
+            return;
+        }
+        int len = (int) Math.min(payloadLength - payloadRead, buf.remaining());
+        buf.position(buf.position() + len);
+        payloadRead += len;
+        if (payloadRead == payloadLength) {
+            nextFrame();
+        }
+    }
+
+    void frameHeader() throws IOException {
+        b1 = header[0] & 0xFF;
+        int b2 = header[1] & 0xFF;
+        if ((b1 & WsListener.OP_EXTENSIONS) != 0) {
+            conn.closeDueTo(WsStatus.PROTOCOL_ERROR, "Unautorized extension",
+                    new ProtocolException());
+            throw new ProtocolException();
+        }
+// client MUST mask the data, server - MUST NOT
+        maskedPayload = (b2 & WsListener.MASKED_DATA) != 0;
+        if (!maskedPayload) {
+            conn.closeDueTo(WsStatus.PROTOCOL_ERROR, "Mask mismatch",
+                    new ProtocolException());
+        }
+        payloadLength = b2 & 0x7F;
+        int off = 2;
+        if (payloadLength > 125L) {
+            int toRead = payloadLength == 126L ? 2 : 8;
+            payloadLength = 0L;
+            for (int i = 0; i < toRead; i++) {
+                payloadLength <<= 8;
+                payloadLength += (header[off++] & 0xFF);
+            }
+            if (payloadLength < 0L) { // the most significant bit MUST be 0
+                throw new ProtocolException("Invalid payload length");
+            }
+        }
+        if (maskedPayload) {
+            System.arraycopy(header, off, payloadMask, 0, 4);
+        }
+        payloadRead = 0L;
+        skipPayload = false;
+        dataFrame = WsListener.isDataFrame(b1, messageStream != null);
+        if (dataFrame) {
+            if (messageStream == null) {
+                messageStream = new WsMessage((b1 & WsListener.OP_TEXT) > 0, conn);
+                messageLength = 0L;
+            }
+            messageLength += payloadLength;
+            if (conn.wsp.maxMessageLength != -1 && messageLength > conn.wsp.maxMessageLength) {
+                IOException e = new IOException("Message too big");
+                conn.closeDueTo(WsStatus.MESSAGE_TOO_BIG, e.getMessage(), e);
+                messageStream.close();
+            }
+            skipPayload = messageStream.closed;
+        } else if (payloadLength > 125L) {
+            throw new ProtocolException("Payload too big");
+        }
+        if (!skipPayload) {
+            nextChunk();
+        } else if (payloadLength == 0L) {
+            nextFrame();
+        }
+    }
+
+    // allocate the next payload chunk or complete the frame
+    void nextChunk() throws IOException {
+        chunkLen = (int) Math.min(payloadLength - payloadRead,
+                WsListener.MAX_CHUNK_LENGTH);
+// data chunks are pooled, control frame payloads are exact
+        payload = dataFrame ? WsBufferPool.get(chunkLen) : new byte[chunkLen];
+        payloadOff = 0;
+        if (chunkLen == 0) {
+            framePayload();
+        }
+    }
+
+    void framePayload() throws IOException {
+        if (maskedPayload) {
+            WsIo.umaskPayload(payloadMask, payloadRead, payload, 0, chunkLen);
+        }
+        payloadRead += chunkLen;
+        if (!dataFrame) {
+            controlFrame(payload);
+            nextFrame();
+            return;
+        }
+        boolean valid = chunkLen == 0 || messageStream.isValidText(payload, chunkLen);
+        if (chunkLen > 0 && valid) {
+            messageStream.putPayload(payload, chunkLen);
+        } else {
+            WsBufferPool.put(payload);
+        }
+        payload = null;
+        if (valid && payloadRead == payloadLength && (b1 & WsListener.OP_FINAL) != 0) {
+            valid = messageStream.isValidText(WsListener.EMPTY_PAYLOAD, 0);
+        }
+        if (!valid) {
+            WsListener.invalidText(conn, messageStream);
+            skipPayload = true; // skip the rest of the frame
+            if (payloadRead == payloadLength) {
+                nextFrame();
+            }
+            return;
+        }
+        if (payloadRead < payloadLength) {
+            nextChunk();
+            return;
+        }
+        if ((b1 & WsListener.OP_FINAL) != 0) {
+            WsMessage msg = messageStream;
+            messageStream = null;
+            msg.putPayload(WsListener.EMPTY_PAYLOAD); // eof
+            nextFrame();
+            try {
+                conn.dispatch(msg); // onMessage
+            } catch (IllegalStateException e) { // message queue overflow
+                conn.closeDueTo(WsStatus.POLICY_VIOLATION, e.getMessage(), e);
+            }
+            return;
+        }
+        nextFrame();
+    }
+
+    void nextFrame() {
+        headerLen = 0;
+        headerNeed = 2;
+        payload = null;
+    }
+
+    void controlFrame(byte[] framePayload) throws IOException {
+        if (b1 == WsListener.OP_PONG) {
+            if (pingFrameSent
+                    && Arrays.equals(framePayload, WsListener.PING_PAYLOAD)) {
+                pingFrameSent = false;
+                return;
+            }
+            if (conn.pong(framePayload)) { // keepalive
+                return;
+            }
+            throw new ProtocolException("Unexpected pong");
+        }
+        WsListener.controlFrame(conn, b1, framePayload);
+    }
+
+    // called by the handler thread: the pending messages are read
+    void resume() {
+        loop.resume(this);
+    }
+
+    // selector loop: continue reading
+    void resumed() {
+        paused = false;
+        lastRead = System.currentTimeMillis();
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+    }
+
+    // selector loop: the channel is writable
+    void writable() {
+        try {
+            if (writeBacklog()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            error(e);
+        }
+    }
+
+    // writes the unsent output of the loop thread, returns true if it is written
+    private boolean writeBacklog() throws IOException {
+        backlogLock.lock();
+        try {
+            if (backlogLen > 0) {
+                int n = channel.write(ByteBuffer.wrap(backlog, backlogOff, backlogLen));
+                backlogOff += n;
+                backlogLen -= n;
+            }
+            if (backlogLen > 0) {
+                return false;
+            }
+            backlog = null;
+            backlogOff = 0;
+            return true;
+        } finally {
+            backlogLock.unlock();
+        }
+    }
+
+    // under the output lock: the loop thread appends the unsent bytes
+    // to the backlog instead of waiting. Returns false for other threads
+    // or if the backlog is full
+    private boolean toBacklog(ByteBuffer[] bbs) {
+        if (Thread.currentThread() != loop || key == null || !key.isValid()) {
+            return false;
+        }
+        int len = 0;
+        for (ByteBuffer bb : bbs) {
+            len += bb.remaining();
+        }
+        backlogLock.lock();
+        try {
+            if (backlogLen + len > MAX_BACKLOG) {
+                return false;
+            }
+            if (backlog == null || backlogOff + backlogLen + len > backlog.length) {
+                byte[] b = new byte[Math.max(backlogLen + len, backlogLen * 2)];
+                if (backlogLen > 0) {
+                    System.arraycopy(backlog, backlogOff, b, 0, backlogLen);
+                }
+                backlog = b;
+                backlogOff = 0;
+            }
+            for (ByteBuffer bb : bbs) {
+                int n = bb.remaining();
+                bb.get(backlog, backlogOff + backlogLen, n);
+                backlogLen += n;
+            }
+        } finally {
+            backlogLock.unlock();
+        }
+        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        return true;
+    }
+
+    // selector loop: check the socket timeout (see WsListener.run)
+    // The opening handshake deadline is controlled by the close timer
+    void checkTimeout(long now) {
+        int timeout = conn.wsp.connectionSoTimeout;
+        if (finished || paused || conn.status.code == WsStatus.IS_INACTIVE
+                || timeout <= 0 || now - lastRead < timeout) {
+            return;
+        }
+        lastRead = now;
+        SocketTimeoutException e = new SocketTimeoutException("Read timed out");
+        if (conn.isOpen() && conn.wsp.pingEnabled && !pingFrameSent) {
+            pingFrameSent = true;
+            try {
+                WsIo.sendControlFrame(conn, WsListener.OP_PING,
+                        WsListener.PING_PAYLOAD, WsListener.PING_PAYLOAD.length);
+            } catch (IOException ex) {
+                conn.closeDueTo(WsStatus.ABNORMAL_CLOSURE, e.getMessage(), e);
+                finish();
+            }
+        } else {
+            error(e);
+        }
+    }
+
+    // see WsListener.run exceptions handling
+    void error(Throwable e) {
+        if (finished) {
+            return;
+        }
+        if (conn.status.code == WsStatus.IS_INACTIVE) {
+            synchronized (conn) {
+                WsHandshake.handshakeError(conn, e);
+                conn.notifyAll();
+            }
+        } else if (e instanceof SocketTimeoutException) {
+            conn.closeDueTo(WsStatus.GOING_AWAY, "Timeout", e);
+        } else if (e instanceof ProtocolException) {
+            conn.closeDueTo(WsStatus.PROTOCOL_ERROR, e.getMessage(), e);
+        } else {
+            conn.closeDueTo(WsStatus.ABNORMAL_CLOSURE, e.getMessage(), e);
+            if (!(e instanceof Exception)) {
+                e.printStackTrace();
+            }
+        }
+        finish();
+    }
+
+    // leave connection (see WsListener.run, WsConnection.run)
+    void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        conn.cancelCloseTimer();
+        if (messageStream != null) {
+            messageStream.close(); // incomplete message
+        }
+        if (conn.inbound != null) {
+            conn.inbound.close();
+        }
+        try {
+            writeBacklog(); // the last attempt, e.g. the close frame
+        } catch (IOException ignore) {
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (conn.status.code == WsStatus.IS_INACTIVE) {
+            synchronized (conn) {
+                WsHandshake.handshakeError(conn, new EOFException("Connection closed"));
+                conn.notifyAll();
+            }
+        }
+        Selector selector = writeSelector;
+        if (selector != null) {
+            selector.wakeup(); // the waiting writer checks the finished flag
+            synchronized (conn.outStream) {
+                try {
+                    writeSelector.close();
+                } catch (IOException ignore) {
+                }
+                writeSelector = null;
+            }
+        }
+        conn.dispatch(conn.getStatus()); // onClose, release
+    }
+
+    // under the output lock: waiting for the non-blocking channel to be writable
+    void waitWritable() throws IOException {
+        if (finished) {
+            throw new SocketException("Socket closed");
+        }
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        int timeout = conn.wsp.connectionSoTimeout;
+        long deadline = System.nanoTime() + timeout * 1000000L;
+        long wait = timeout;
+// select returns 0 on wakeup or spuriously: wait until the deadline
+        while (writeSelector.select(wait) == 0) {
+            if (finished) {
+                throw new SocketException("Socket closed");
+            }
+            if (timeout > 0) {
+                wait = (deadline - System.nanoTime()) / 1000000L;
+                if (wait <= 0) {
+                    throw new SocketTimeoutException("Write timed out");
+                }
+            }
+        }
+        if (finished) {
+            throw new SocketException("Socket closed");
+        }
+        writeSelector.selectedKeys().clear();
+    }
+
+    // channel output stream, buffered by the flush policy. See WsIo.sendFrame
+    class Output extends OutputStream {
+
+        private final byte[] buffer = conn.wsp.flushPolicy == WsParameters.FLUSH_MESSAGE
+                ? null : new byte[conn.wsp.flushBufferLength]; // coalesced messages
+        private int count = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buffer != null && len <= buffer.length - count) {
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+                return;
+            }
+            drain(ByteBuffer.wrap(b, off, len), EMPTY_BUFFER);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (count > 0) {
+                drain(EMPTY_BUFFER, EMPTY_BUFFER);
+            }
+        }
+
+        // writes the file region by the channel (sendfile)
+        void transfer(FileChannel file, long pos, long len) throws IOException {
+            flush();
+            while (!writeBacklog()) { // the loop thread waits too
+                waitWritable();
+            }
+            while (len > 0) {
+                long n = file.transferTo(pos, len, channel);
+                if (n == 0) {
+                    if (pos >= file.size()) {
+                        throw new EOFException("Unexpected end of file");
+                    }
+                    waitWritable();
+                }
+                pos += n;
+                len -= n;
+            }
+        }
+
+        // buffered or gathering write of the frame header and payload
+        void write(ByteBuffer header, ByteBuffer payload) throws IOException {
+            int len = header.remaining() + payload.remaining();
+            if (buffer != null && len <= buffer.length - count) {
+                int n = header.remaining();
+                header.get(buffer, count, n);
+                payload.get(buffer, count + n, len - n);
+                count += len;
+                return;
+            }
+            drain(header, payload);
+        }
+
+        // gathering write of the buffered bytes, frame header and payload
+        private void drain(ByteBuffer header, ByteBuffer payload) throws IOException {
+            ByteBuffer[] bbs = new ByteBuffer[]{
+                buffer == null ? EMPTY_BUFFER : ByteBuffer.wrap(buffer, 0, count),
+                header, payload};
+            count = 0;
+            while (!writeBacklog()) { // the earlier output of the loop thread
+                if (toBacklog(bbs)) {
+                    return;
+                }
+                waitWritable();
+            }
+            while (bbs[0].hasRemaining() || bbs[1].hasRemaining() || bbs[2].hasRemaining()) {
+                if (channel.write(bbs) == 0) {
+                    if (toBacklog(bbs)) {
+                        return;
+                    }
+                    waitWritable();
+                }
+            }
+        }
+    }
+
+}
@@ -8,16 +8,26 @@
 package org.miktim.websocket;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.URI;
-import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ssl.SSLSocket;
 
 /**
@@ -37,9 +47,20 @@ public final class WsConnection extends Thread {
     OutputStream outStream;  // initialized in WsHandshake.waitHandshake()
     URI requestURI;
     String subProtocol = null; // handshaked WebSocket subprotocol
-    List<WsConnection> connections = null; // backlink to the list of WebSocket or WsServer connections
+    WsRegistry connections = null; // backlink to the registry of WebSocket or WsServer connections
+    private static final AtomicLong lastConnectionId = new AtomicLong();
+    final long connectionId = lastConnectionId.incrementAndGet();
     HttpHead requestHead = new HttpHead();
     HttpHead responseHead = new HttpHead();
+    WsChannel channel = null; // non-blocking server engine (see WsSelector)
+    volatile Thread handlerThread = null; // the thread calling the handler
+    Thread runner = this; // the thread running this connection (platform or virtual)
+    WsDispatcher dispatcher = null; // handler calls by the executor (see WsParameters)
+    boolean inlineDispatch = false; // listener calls the handler for whole messages
+    WsBudget.Account inbound = null; // inbound budget (see WsParameters)
+    final WsSender sender = new WsSender(this); // asynchronous sends queue
+    final WsFlusher flusher = new WsFlusher(this); // output flush policy
+    private static ExecutorService closers = null; // shared deadline socket closers
 
     /**
      * Sends streamed binary data or UTF-8 encoded text.
@@ -64,12 +85,101 @@ public final class WsConnection extends Thread {
     public void send(byte[] message) {
 //        throws IOException {
         try {
-            syncSend(new ByteArrayInputStream(message), false);
+            syncSend(message, 0, message.length, false);
         } catch (Throwable th) {
             throw new WsError("send(byte[]) error", th);
         }
     }
 
+    /**
+     * Sends binary data or UTF-8 encoded text from the part of the array.
+     * <br>
+     * The message is framed straight from the array, the array is
+     * not modified.
+     *
+     * @param message array of bytes.
+     * @param off offset of the message in the array.
+     * @param len message length.
+     * @param isText if true, the message is UTF-8 encoded text.
+     * Otherwise - binary data.
+     * @throws IndexOutOfBoundsException if off or len are out of the array bounds
+     * @throws WsError on any other exception
+     * @since 5.1
+     */
+    public void send(byte[] message, int off, int len, boolean isText) {
+        if (off < 0 || len < 0 || len > message.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        try {
+            syncSend(message, off, len, isText);
+        } catch (Throwable th) {
+            throw new WsError("send(byte[],int,int,boolean) error", th);
+        }
+    }
+
+    /**
+     * Sends binary data from the remaining part of the buffer.
+     * <br>
+     * The message is framed straight from the heap or direct buffer memory.
+     * The buffer position and limit are not changed.
+     *
+     * @param message the buffer.
+     * @throws WsError on any exception
+     * @since 5.1
+     */
+    public void send(ByteBuffer message) {
+        try {
+            syncSend(message, false);
+        } catch (Throwable th) {
+            throw new WsError("send(ByteBuffer) error", th);
+        }
+    }
+
+    /**
+     * Sends binary data from the region of the file.
+     * <br>
+     * The server-side connections of the non-blocking engine transfer
+     * the payload from the file to the socket without copying
+     * (FileChannel.transferTo), the others read the file by the pooled
+     * buffers. The file channel position is not changed.
+     *
+     * @param file the file channel opened for reading.
+     * @param pos position of the message in the file.
+     * @param len message length.
+     * @throws IndexOutOfBoundsException if pos or len is negative
+     * @throws WsError on any other exception
+     * @see WsParameters#setSelectors(int)
+     * @since 5.1
+     */
+    public void send(FileChannel file, long pos, long len) {
+        if (pos < 0 || len < 0) {
+            throw new IndexOutOfBoundsException();
+        }
+        try {
+            syncSend(file, pos, len);
+        } catch (Throwable th) {
+            throw new WsError("send(FileChannel,long,long) error", th);
+        }
+    }
+
+    /**
+     * Sends the prepared message.
+     * <br>
+     * Server-side connections write the encoded frames by a single write,
+     * client connections mask the frame payloads while copying.
+     *
+     * @param message prepared message.
+     * @throws WsError on any exception
+     * @since 5.1
+     */
+    public void send(WsPreparedMessage message) {
+        try {
+            syncSend(message);
+        } catch (Throwable th) {
+            throw new WsError("send(WsPreparedMessage) error", th);
+        }
+    }
+
     /**
      * Sends text message.
      *
@@ -79,12 +189,105 @@ public final class WsConnection extends Thread {
     public void send(String message) {
 //        throws IOException {
         try {
-            syncSend(new ByteArrayInputStream(message.getBytes("UTF-8")), true);
+            syncSend(CharBuffer.wrap(message));
         } catch (Throwable th) {
             throw new WsError("send(String) error", th);
         }
     }
 
+    /**
+     * Sends text message.
+     * <br>
+     * The text is UTF-8 encoded frame by frame without the full message copy.
+     *
+     * @param message text message (StringBuilder, CharBuffer etc).
+     * @throws WsError on any exception
+     * @since 5.1
+     */
+    public void send(CharSequence message) {
+        try {
+            syncSend(CharBuffer.wrap(message));
+        } catch (Throwable th) {
+            throw new WsError("send(CharSequence) error", th);
+        }
+    }
+
+    /**
+     * Sends text message from the part of the array.
+     * <br>
+     * See: {@link WsConnection#send(CharSequence)}
+     *
+     * @param message array of chars.
+     * @param off offset of the message in the array.
+     * @param len message length in chars.
+     * @throws IndexOutOfBoundsException if off or len are out of the array bounds
+     * @throws WsError on any other exception
+     * @since 5.1
+     */
+    public void send(char[] message, int off, int len) {
+        if (off < 0 || len < 0 || len > message.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        try {
+            syncSend(CharBuffer.wrap(message, off, len));
+        } catch (Throwable th) {
+            throw new WsError("send(char[],int,int) error", th);
+        }
+    }
+
+    /**
+     * Queues streamed binary data or UTF-8 encoded text for sending.
+     * <p>
+     * The messages are sent in order by the connection writer, so the
+     * calling thread never blocks on the socket write. The input stream
+     * is read by the writer and must not be closed until the message is sent.
+     * The queue length and the queue full behavior are set by
+     * {@link WsParameters#setSendQueue(int, int)}.
+     * </p>
+     *
+     * @param is data input stream.
+     * @param isText if true, input stream is UTF-8 encoded text. Otherwise -
+     * binary data.
+     * @return the future completed when the message is sent.
+     * The future fails on send error, closed connection or queue overflow.
+     * @since 5.1
+     */
+    public Future<Void> sendAsync(InputStream is, boolean isText) {
+        if (is == null) {
+            throw new NullPointerException();
+        }
+        return sender.send(is, isText);
+    }
+
+    /**
+     * Queues binary data for sending.
+     * <br>
+     * The array is not copied and must not be modified until
+     * the returned future is completed.
+     * <br>
+     * See: {@link WsConnection#sendAsync(InputStream, boolean)} for details
+     *
+     * @param message array of bytes.
+     * @return the future completed when the message is sent.
+     * @since 5.1
+     */
+    public Future<Void> sendAsync(byte[] message) {
+        return sender.send(message, 0, message.length, false);
+    }
+
+    /**
+     * Queues text message for sending.
+     * <br>
+     * See: {@link WsConnection#sendAsync(InputStream, boolean)} for details
+     *
+     * @param message text message.
+     * @return the future completed when the message is sent.
+     * @since 5.1
+     */
+    public Future<Void> sendAsync(String message) {
+        return sender.send(CharBuffer.wrap(message));
+    }
+
     /**
      * Returns handshaked WebSocket subprotocol.
      *
@@ -104,6 +307,43 @@ public final class WsConnection extends Thread {
         return status.deepClone();
     }
 
+    /**
+     * Returns the last round-trip time measured by the keepalive ping.
+     *
+     * @return RTT in microseconds or -1 if not measured.
+     * @see WsParameters#setPingInterval(int, int)
+     * @since 5.1
+     */
+    public long getLastRtt() {
+        WsKeepAlive ka = keepAlive;
+        return ka == null ? -1L : ka.lastRtt;
+    }
+
+    /**
+     * Returns the minimum round-trip time measured by the keepalive ping.
+     *
+     * @return RTT in microseconds or -1 if not measured.
+     * @see WsParameters#setPingInterval(int, int)
+     * @since 5.1
+     */
+    public long getMinRtt() {
+        WsKeepAlive ka = keepAlive;
+        return ka == null ? -1L : ka.minRtt;
+    }
+
+    /**
+     * Returns the smoothed round-trip time (RFC 6298 SRTT) measured
+     * by the keepalive ping.
+     *
+     * @return RTT in microseconds or -1 if not measured.
+     * @see WsParameters#setPingInterval(int, int)
+     * @since 5.1
+     */
+    public long getSmoothedRtt() {
+        WsKeepAlive ka = keepAlive;
+        return ka == null ? -1L : ka.smoothedRtt;
+    }
+
     /**
      * Checks connection is open.
      *
@@ -148,7 +388,7 @@ public final class WsConnection extends Thread {
     public synchronized void setHandler(Handler newHandler) { //
         if (status.code == WsStatus.IS_OPEN &&
                 !newHandler.equals(handler) && // also checks for a null
-                Thread.currentThread().equals(this)) {
+                Thread.currentThread().equals(handlerThread)) {
             callHandler(this, getStatus());
             handler = newHandler;
             isPrimaryHandler = false;
@@ -206,6 +446,19 @@ public final class WsConnection extends Thread {
         return null;
     }
 
+    /**
+     * Returns the connection id.
+     * <br>The id is unique within the Java VM and does not change.
+     *
+     * @return connection id.
+     * @see WsServer#getConnection(long)
+     * @see WebSocket#getConnection(long)
+     * @since 5.1
+     */
+    public long getConnectionId() {
+        return connectionId;
+    }
+
     /**
      * Returns the connection port number.
      *
@@ -268,21 +521,224 @@ public final class WsConnection extends Thread {
      */
     private final Object syncSend = new Object();
 
-    private void syncSend(InputStream is, boolean isText)
+    void syncSend(InputStream is, boolean isText)
             throws IOException {
         synchronized (syncSend) {
             int op = isText ? WsListener.OP_TEXT : WsListener.OP_BINARY;
-            byte[] payloadBuffer = new byte[wsp.payloadBufferLength];
-            int len = 0;
-            while ((len = WsIo.readFully(is, payloadBuffer, 0, payloadBuffer.length)) == payloadBuffer.length) {
-                WsIo.sendFrame(this, op, payloadBuffer, payloadBuffer.length);
-                op = WsListener.OP_CONTINUATION;
+            int frameLen = wsp.payloadBufferLength;
+            if (is instanceof ByteArrayInputStream) {
+// the message length is known. +1: the final frame is not empty
+                frameLen = Math.min(frameLen, is.available() + 1);
             }
+            byte[] payloadBuffer = WsBufferPool.get(WsIo.MAX_HEADER_LENGTH + frameLen);
+            try {
+// the frame header is built before the payload, see WsIo.sendFrame
+                int off = WsIo.MAX_HEADER_LENGTH;
+                frameLen = Math.min(payloadBuffer.length - off, wsp.payloadBufferLength);
+                int len = 0;
+                while ((len = WsIo.readFully(is, payloadBuffer, off, frameLen)) == frameLen) {
+                    WsIo.sendFrame(this, op, payloadBuffer, off, frameLen, false);
+                    op = WsListener.OP_CONTINUATION;
+                }
 // be sure to send the final frame even if eof is detected (payload length = 0)!            
-            WsIo.sendFrame(this, op | WsListener.OP_FINAL, payloadBuffer, len >= 0 ? len : 0); //
+                WsIo.sendFrame(this, op | WsListener.OP_FINAL, payloadBuffer, off,
+                        len >= 0 ? len : 0, true); // flush once per message
+            } finally {
+                WsBufferPool.put(payloadBuffer);
+            }
         } // synchronized
     }
 
+    // sends the message from the array, the array is not modified
+    void syncSend(byte[] message, int off, int len, boolean isText)
+            throws IOException {
+        synchronized (syncSend) {
+            int op = isText ? WsListener.OP_TEXT : WsListener.OP_BINARY;
+            int frameLen = Math.min(len, wsp.payloadBufferLength);
+            byte[] frameBuffer = WsBufferPool.get(WsIo.MAX_HEADER_LENGTH
+                    + (isClientSide() ? frameLen : 0)); // server: header only
+            try {
+                do {
+                    frameLen = Math.min(len, wsp.payloadBufferLength);
+                    len -= frameLen;
+                    WsIo.sendFrame(this, len == 0 ? op | WsListener.OP_FINAL : op,
+                            message, off, frameLen, frameBuffer, len == 0);
+                    off += frameLen;
+                    op = WsListener.OP_CONTINUATION;
+                } while (len > 0);
+            } finally {
+                WsBufferPool.put(frameBuffer);
+            }
+        } // synchronized
+    }
+
+    private CharsetEncoder utf8Encoder = null; // guarded by syncSend
+
+    // sends the text encoding it into the frame buffer frame by frame
+    void syncSend(CharBuffer text) throws IOException {
+        synchronized (syncSend) {
+            if (utf8Encoder == null) {
+                utf8Encoder = Charset.forName("UTF-8").newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            }
+            CharsetEncoder encoder = utf8Encoder.reset();
+            int op = WsListener.OP_TEXT;
+// up to 3 bytes per char (4 per surrogate pair)
+            int frameLen = (int) Math.min(wsp.payloadBufferLength, 3L * text.remaining());
+            byte[] frameBuffer = WsBufferPool.get(WsIo.MAX_HEADER_LENGTH + frameLen);
+            try {
+                int off = WsIo.MAX_HEADER_LENGTH;
+                frameLen = Math.min(frameBuffer.length - off, wsp.payloadBufferLength);
+                ByteBuffer payload = ByteBuffer.wrap(frameBuffer, off, frameLen);
+                while (true) {
+                    encodeAscii(text, payload);
+                    if (text.hasRemaining() && payload.hasRemaining()) {
+                        CoderResult cr = encoder.encode(text, payload, true);
+                        if (cr.isError()) {
+                            cr.throwException();
+                        }
+                    }
+                    if (!text.hasRemaining()) {
+                        break; // UTF-8 encoder has nothing to flush
+                    }
+                    WsIo.sendFrame(this, op, frameBuffer, off, payload.position() - off, false);
+                    op = WsListener.OP_CONTINUATION;
+                    payload.position(off);
+                }
+                WsIo.sendFrame(this, op | WsListener.OP_FINAL, frameBuffer, off,
+                        payload.position() - off, true);
+            } finally {
+                WsBufferPool.put(frameBuffer);
+            }
+        } // synchronized
+    }
+
+    // ASCII fast path: copies the chars below 0x80 while there is room
+    static void encodeAscii(CharBuffer text, ByteBuffer payload) {
+        byte[] dst = payload.array();
+        int dp = payload.arrayOffset() + payload.position();
+        int n = Math.min(text.remaining(), payload.remaining());
+        int i = 0;
+        if (text.hasArray()) {
+            char[] src = text.array();
+            int sp = text.arrayOffset() + text.position();
+            for (char c; i < n && (c = src[sp + i]) < 0x80; i++) {
+                dst[dp + i] = (byte) c;
+            }
+        } else {
+            int sp = text.position();
+            for (char c; i < n && (c = text.get(sp + i)) < 0x80; i++) {
+                dst[dp + i] = (byte) c;
+            }
+        }
+        text.position(text.position() + i);
+        payload.position(payload.position() + i);
+    }
+
+    // sends the remaining part of the buffer, the buffer is not modified
+    void syncSend(ByteBuffer message, boolean isText) throws IOException {
+        if (message.hasArray()) {
+            syncSend(message.array(), message.arrayOffset() + message.position(),
+                    message.remaining(), isText);
+            return;
+        }
+        ByteBuffer payload = message.duplicate();
+        synchronized (syncSend) {
+            int op = isText ? WsListener.OP_TEXT : WsListener.OP_BINARY;
+            int len = payload.remaining();
+            int frameLen = Math.min(len, wsp.payloadBufferLength);
+            byte[] frameBuffer = WsBufferPool.get(WsIo.MAX_HEADER_LENGTH + frameLen);
+            try {
+                do {
+                    frameLen = Math.min(len, wsp.payloadBufferLength);
+                    len -= frameLen;
+                    payload.limit(payload.position() + frameLen);
+                    WsIo.sendFrame(this, len == 0 ? op | WsListener.OP_FINAL : op,
+                            payload, frameBuffer, len == 0);
+                    payload.limit(message.limit());
+                    op = WsListener.OP_CONTINUATION;
+                } while (len > 0);
+            } finally {
+                WsBufferPool.put(frameBuffer);
+            }
+        } // synchronized
+    }
+
+    // sends the file region, the file position is not changed
+    void syncSend(FileChannel file, long pos, long len) throws IOException {
+        if (pos + len > file.size()) {
+            throw new EOFException("Unexpected end of file");
+        }
+        synchronized (syncSend) {
+            int op = WsListener.OP_BINARY;
+            int frameLen = (int) Math.min(len, wsp.payloadBufferLength);
+            byte[] frameBuffer = WsBufferPool.get(WsIo.MAX_HEADER_LENGTH
+                    + (outStream instanceof WsChannel.Output ? 0 : frameLen)); // header only
+            try {
+                do {
+                    frameLen = (int) Math.min(len, wsp.payloadBufferLength);
+                    len -= frameLen;
+                    WsIo.sendFrame(this, len == 0 ? op | WsListener.OP_FINAL : op,
+                            file, pos, frameLen, frameBuffer, len == 0);
+                    pos += frameLen;
+                    op = WsListener.OP_CONTINUATION;
+                } while (len > 0);
+            } finally {
+                WsBufferPool.put(frameBuffer);
+            }
+        } // synchronized
+    }
+
+    // sends the prepared frames, the client masks the frame payloads
+    void syncSend(WsPreparedMessage message) throws IOException {
+        byte[] frames = message.frames;
+        if (!isClientSide()) {
+            sendFrames(frames, 0, frames.length);
+            return;
+        }
+        synchronized (syncSend) {
+            byte[] frameBuffer = null;
+            try {
+                int pos = 0;
+                while (pos < frames.length) {
+// unmasked frame header, see WsIo.frameHeader
+                    int op = frames[pos] & 0xFF;
+                    int len = frames[pos + 1] & 0x7F;
+                    pos += 2;
+                    if (len > 125) {
+                        int n = len == 126 ? 2 : 8;
+                        len = 0;
+                        for (int i = 0; i < n; i++) {
+                            len = (len << 8) | (frames[pos++] & 0xFF);
+                        }
+                    }
+                    if (frameBuffer == null) { // the first frame is the longest
+                        frameBuffer = WsBufferPool.get(WsIo.MAX_HEADER_LENGTH + len);
+                    }
+                    WsIo.sendFrame(this, op, frames, pos, len, frameBuffer,
+                            pos + len == frames.length);
+                    pos += len;
+                }
+            } finally {
+                WsBufferPool.put(frameBuffer);
+            }
+        } // synchronized
+    }
+
+    // writes encoded message frames, see WsServer.broadcast
+    void sendFrames(byte[] frames, int off, int len) throws IOException {
+        synchronized (syncSend) {
+            synchronized (outStream) {
+                if (status.code != WsStatus.IS_OPEN) {
+                    throw new SocketException("WebSocket closed");
+                }
+                outStream.write(frames, off, len);
+                flusher.flush(frames[off]);
+            }
+        }
+    }
+
     /**
      * Closes this connection with status code 1000 (NORMAL_CLOSURE) and empty
      * reason.
@@ -302,12 +758,43 @@ public final class WsConnection extends Thread {
         close(WsStatus.NORMAL_CLOSURE, reason);
     }
 
-    Timer closeTimer;
+    volatile WsKeepAlive keepAlive = null; // keepalive ping scheduler
+    volatile WsTimer.Task closeTimer; // opening or closing handshake deadline
 
     void cancelCloseTimer() {
-        if (closeTimer != null) {
-            closeTimer.cancel();
+        WsTimer.Task timer = closeTimer;
+        if (timer != null) {
+            timer.cancel();
+        }
+    }
+
+    synchronized static Executor closers() {
+        if (closers == null) {
+            closers = WsThreads.newPool("WsCloser");
+        }
+        return closers;
+    }
+
+    // force closing socket when the handshake timeout expires
+    void startCloseTimer() {
+        final boolean opening = status.code == WsStatus.IS_INACTIVE;
+        if (opening && wsp.handshakeSoTimeout <= 0) {
+            return; // no deadline, as SO_TIMEOUT = 0
         }
+        closeTimer = WebSocket.timer.schedule(new WsTimer.Task() {
+            @Override
+            public void run() {
+                if (!opening || status.code == WsStatus.IS_INACTIVE) {
+// the timer thread must not block: SSLSocket.close sends close_notify
+                    closers().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            closeSocket();
+                        }
+                    });
+                }
+            }
+        }, wsp.handshakeSoTimeout);
     }
 
     /**
@@ -365,14 +852,7 @@ public final class WsConnection extends Thread {
 //                    status.code = code; // disable output
 //                    socket.shutdownOutput(); // not good for SSLSocket
 // force closing socket
-                closeTimer = new Timer(true);
-                closeTimer.schedule(new TimerTask() {
-                    @Override
-                    public void run() {
-                        setName("WsClose" + getName());
-                        closeSocket();
-                    }
-                }, wsp.handshakeSoTimeout);
+                startCloseTimer();
             } catch (Exception e) {
             }
             status.set(code, reason, false);
@@ -406,6 +886,11 @@ public final class WsConnection extends Thread {
         this.wsp = wsp;
         isSecure = (s instanceof SSLSocket);
         isClientSide = side;
+        if (wsp.executor != null) {
+            dispatcher = new WsDispatcher(this, wsp.executor);
+        } else {
+            inlineDispatch = wsp.inlineDispatch;
+        }
 //        payloadBuffer = new byte[wsp.payloadBufferLength];
     }
 
@@ -428,36 +913,83 @@ public final class WsConnection extends Thread {
     @Override
     public void start() {
         connections.add(this);
+        if (wsp.virtualThreads) {
+            runner = WsThreads.startVirtual(this, "WsConnection" + getName());
+            if (runner != null) {
+                return;
+            }
+            runner = this;
+        }
         super.start();
     }
 
     @Override
     public void run() {
-        synchronized (this) {
-            setName("WsConnection" + getName());
+        setName("WsConnection" + getName());
+        startCloseTimer(); // opening handshake deadline
+        if (runner != this) {
+// virtual thread: blocking in the monitor pins the carrier thread
             WsHandshake.waitHandshake(this);
+        }
+        synchronized (this) {
+            if (status.code == WsStatus.IS_INACTIVE) {
+                WsHandshake.waitHandshake(this);
+            }
             this.notifyAll();
         }
+        cancelCloseTimer();
         if (status.code == WsStatus.IS_OPEN) { // WebSocket handshake Ok?
-            callHandler(this, subProtocol); // onOpen
-            waitMessages();
+            dispatch(subProtocol); // onOpen
+            if (dispatcher != null || inlineDispatch) {
+                (new WsListener(this)).run(); // listen in this thread
+            } else {
+                waitMessages();
+            }
+        }
+        dispatch(getStatus()); // onClose
+    }
+
+    // calls the handler directly or by the executor
+    void dispatch(Object arg) {
+        if (arg instanceof WsMessage) {
+            ((WsMessage) arg).dispatched();
+        }
+        if (dispatcher != null) {
+            dispatcher.dispatch(arg);
+        } else {
+            WsDispatcher.call(this, arg);
         }
-        callHandler(this, getStatus()); // onClose
+    }
+
+    // releases the connection after the onClose call
+    void release() {
+        if (keepAlive != null) {
+            keepAlive.stop();
+        }
+        sender.stop();
         if (!isClientSide) {
             closeSocket();
         }
-        connections.remove(this);
+        if (connections.remove(this) && !isClientSide) {
+            connections.free(); // the slot reserved by the server acceptor
+        }
     }
 
     static void callHandler(WsConnection conn, Object arg) {
         String handlerName = "";
+        Thread prevThread = conn.handlerThread;
+        conn.handlerThread = Thread.currentThread();
         try {
             if (arg == null || arg instanceof String) {
                 handlerName = "onOpen";
                 conn.handler.onOpen(conn, arg == null ? null : (String) arg);
             } else if (arg instanceof WsMessage) {
                 handlerName = "onMessage";
-                conn.handler.onMessage(conn, (WsMessage) arg);
+                try {
+                    conn.handler.onMessage(conn, (WsMessage) arg);
+                } finally {
+                    ((WsMessage) arg).handled();
+                }
             } else if (arg instanceof Throwable) {
                 handlerName = "onError";
                 conn.handler.onError(conn, (Throwable) arg);
@@ -483,34 +1015,68 @@ public final class WsConnection extends Thread {
                 callHandler(conn, err);
             }
             err.printStackTrace();
+        } finally {
+            conn.handlerThread = prevThread;
+            if (prevThread != Thread.currentThread()) {
+                conn.flusher.flushPending(); // end of the handler batch
+            }
         }
     }
 
     LinkedBlockingDeque<WsMessage> messageQueue;
 
+    // the listener has received the first frame of the message
+    void queueMessage(WsMessage msg) throws IllegalStateException {
+        msg.dispatched();
+        if (dispatcher != null) {
+            dispatcher.dispatch(msg);
+        } else if (messageQueue.size() < wsp.maxMessages) {
+            messageQueue.add(msg);
+        } else {
+            throw new IllegalStateException("Message queue full");
+        }
+    }
+
     void clearQueue(WsConnection conn) {
         if (messageQueue != null) {
-            messageQueue.clear();
+            WsMessage msg;
+            while ((msg = messageQueue.poll()) != null) {
+                if (msg.available < 0) {
+                    messageQueue.add(msg); // keep the end of queue mark
+                    break;
+                }
+                msg.discard();
+            }
         }
-        conn.interrupt();
+        conn.runner.interrupt();
     }
 
     void waitMessages() {
-        messageQueue = new LinkedBlockingDeque<WsMessage>(wsp.maxMessages);
+// messages are limited by queueMessage, the end of queue mark always fits
+        messageQueue = new LinkedBlockingDeque<WsMessage>();
         WsListener listener = new WsListener(this);
         listener.start();
-        do {
+        boolean interrupted = false;
+        while (true) {
+            WsMessage msg;
             try {
-                WsMessage msg = messageQueue.take();
-                if (msg.available < 0) {
-                    break;
+                msg = messageQueue.take();
+            } catch (InterruptedException ex) {
+                if (!interrupted) {
+                    interrupted = true;
+                    closeDueTo(WsStatus.ABNORMAL_CLOSURE, "WebSocket connection interrupted", ex);
                 }
+                continue; // drop the messages until the listener exits
+            }
+            if (msg.available < 0) {
+                break; // end of queue
+            }
+            if (interrupted) {
+                msg.discard();
+            } else {
                 callHandler(this, msg);
-            } catch (InterruptedException ex) {
-                closeDueTo(WsStatus.ABNORMAL_CLOSURE, "WebSocket connection interrupted", ex);
-                break;
             }
-        } while (messageQueue.size() > 0 || listener.isAlive());
+        }
     }
 
     boolean isSocketOpen() {
@@ -526,6 +1092,19 @@ public final class WsConnection extends Thread {
             socket.close();
         } catch (IOException ignore) {
         }
+        if (channel != null) {
+            channel.closed(); // notify the selector loop
+        }
+    }
+
+    // returns true if the pong is expected by the keepalive or pongs are ignored
+    boolean pong(byte[] payload) {
+        WsKeepAlive ka = keepAlive;
+        if (ka != null) {
+            ka.pong(payload);
+            return true; // unsolicited pongs are ignored
+        }
+        return false;
     }
 
     void closeDueTo(int closeCode, String reason, Throwable err) {
@@ -533,7 +1112,7 @@ public final class WsConnection extends Thread {
             status.error = err;
             close(closeCode, reason);
             if (err != null) {
-                callHandler(this, err);
+                dispatch(err);
             }
         }
     }
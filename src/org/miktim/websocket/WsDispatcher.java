@@ -0,0 +1,84 @@
+/*
+ * WsDispatcher. MIT (c) 2026 miktim@mail.ru
+ * Serial queue of the connection handler calls executed by the Executor.
+ * See WsParameters.setExecutor
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+class WsDispatcher implements Runnable {
+
+    static final int MAX_BATCH = 16; // handler calls per task execution
+    private static final Object NO_SUBPROTOCOL = new Object(); // onOpen null arg
+
+    private final WsConnection conn;
+    private final Executor executor;
+    private final ArrayDeque<Object> calls = new ArrayDeque<Object>();
+    private boolean scheduled = false;
+    private int pendingMessages = 0;
+
+    WsDispatcher(WsConnection conn, Executor executor) {
+        this.conn = conn;
+        this.executor = executor;
+    }
+
+    // queue handler call, arg: see WsConnection.callHandler
+    void dispatch(Object arg) throws IllegalStateException {
+        synchronized (calls) {
+            if (arg instanceof WsMessage) {
+// the budget stops reading instead (see WsBudget)
+                if (pendingMessages >= conn.wsp.maxMessages && conn.inbound == null) {
+                    throw new IllegalStateException("Message queue full");
+                }
+                pendingMessages++;
+            }
+            calls.add(arg == null ? NO_SUBPROTOCOL : arg);
+            if (scheduled) {
+                return;
+            }
+            scheduled = true;
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) { // executor shutdown
+            run();
+        }
+    }
+
+    @Override
+    public void run() {
+        for (int i = 0; i < MAX_BATCH; i++) {
+            Object arg;
+            synchronized (calls) {
+                arg = calls.poll();
+                if (arg == null) {
+                    scheduled = false;
+                    return;
+                }
+                if (arg instanceof WsMessage) {
+                    pendingMessages--;
+                }
+            }
+            call(conn, arg == NO_SUBPROTOCOL ? null : arg);
+        }
+        try {
+            executor.execute(this); // let other connections go
+        } catch (RejectedExecutionException e) {
+            run();
+        }
+    }
+
+    // calls handler, releases connection after onClose
+    static void call(WsConnection conn, Object arg) {
+        WsConnection.callHandler(conn, arg);
+        if (arg instanceof WsStatus) {
+            conn.release();
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * WsFlusher. MIT (c) 2026 miktim@mail.ru
+ * Flush policy of the connection output. See WsParameters.setFlushPolicy
+ *
+ * The end of the message is flushed immediately, at the end of the batch
+ * (the handler call or the drained send queue) or by the deadline.
+ * The deadlines of all connections are served by a single daemon thread
+ * with the microsecond resolution, the flushes are executed by the executor
+ * (see WsParameters.setExecutor) or by the shared pool of the flusher threads.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.io.IOException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+class WsFlusher implements Runnable {
+
+    private static final DelayQueue<Deadline> deadlines = new DelayQueue<Deadline>();
+    private static Thread timer = null;
+    private static ExecutorService flushers = null; // shared flusher threads
+
+    private final WsConnection conn;
+    private volatile boolean pending = false; // unflushed messages, set under conn.outStream
+
+    WsFlusher(WsConnection conn) {
+        this.conn = conn;
+    }
+
+    // under conn.outStream lock: the message or control frame is written
+    void flush(int opFrame) throws IOException {
+        if ((opFrame & 0x08) == 0) { // data frame
+            switch (conn.wsp.flushPolicy) {
+                case WsParameters.FLUSH_BATCH:
+                    if (inBatch()) {
+                        pending = true;
+                        return;
+                    }
+                    break;
+                case WsParameters.FLUSH_DELAY:
+                    if (!pending) {
+                        pending = true;
+                        schedule(this, conn.wsp.flushDelay);
+                    }
+                    return;
+                default:
+            }
+        }
+        pending = false;
+        conn.outStream.flush();
+    }
+
+    // the current thread is the handler or the send queue writer
+    private boolean inBatch() {
+        Thread current = Thread.currentThread();
+        return current == conn.handlerThread || conn.sender.isWriter(current);
+    }
+
+    // the batch is completed or the deadline is expired.
+    // Does not wait for the output lock if there is nothing to flush
+    void flushPending() {
+        if (conn.wsp.flushPolicy == WsParameters.FLUSH_MESSAGE || !pending
+                || conn.outStream == null) {
+            return;
+        }
+        synchronized (conn.outStream) {
+            if (!pending) {
+                return;
+            }
+            pending = false;
+            try {
+                conn.outStream.flush();
+            } catch (IOException e) {
+                if (conn.isOpen()) {
+                    conn.closeDueTo(WsStatus.ABNORMAL_CLOSURE, e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    // the deadline is expired
+    @Override
+    public void run() {
+        flushPending();
+    }
+
+    private static synchronized void schedule(WsFlusher flusher, long micros) {
+        deadlines.add(new Deadline(flusher, System.nanoTime() + micros * 1000L));
+        if (timer != null) {
+            return;
+        }
+        flushers = WsThreads.newPool("WsFlusher");
+        timer = new Thread() {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        WsFlusher flusher = deadlines.take().flusher;
+                        Executor executor = flusher.conn.wsp.executor;
+                        try {
+                            (executor != null ? executor : flushers)
+                                    .execute(flusher); // the timer must not block
+                        } catch (RejectedExecutionException e) { // executor shutdown
+                            flushers.execute(flusher);
+                        }
+                    } catch (InterruptedException ignore) {
+                    }
+                }
+            }
+        };
+        timer.setDaemon(true);
+        timer.setName("WsFlusher" + timer.getName());
+        timer.start();
+    }
+
+    private static class Deadline implements Delayed {
+
+        final WsFlusher flusher;
+        final long time; // System.nanoTime
+
+        Deadline(WsFlusher flusher, long time) {
+            this.flusher = flusher;
+            this.time = time;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            long d = time - ((Deadline) o).time;
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        }
+    }
+
+}
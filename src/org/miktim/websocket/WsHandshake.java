@@ -22,25 +22,41 @@ class WsHandshake {
     static void waitHandshake(WsConnection conn) {
         try {
             conn.inStream = new BufferedInputStream(conn.socket.getInputStream());
-            conn.outStream = new BufferedOutputStream(conn.socket.getOutputStream());
-            if (conn.isClientSide()) {
-                handshakeServer(conn);
-            } else {
-                handshakeClient(conn);
-            }
-            conn.socket.setSoTimeout(conn.wsp.connectionSoTimeout);
-            conn.status.code = WsStatus.IS_OPEN;
-            conn.status.remotely = !conn.isClientSide();
+            conn.outStream = conn.wsp.flushPolicy == WsParameters.FLUSH_MESSAGE
+                    ? new BufferedOutputStream(conn.socket.getOutputStream())
+                    : new BufferedOutputStream(conn.socket.getOutputStream(),
+                            conn.wsp.flushBufferLength); // coalesced messages
+            handshake(conn);
         } catch (Throwable err) {
-            conn.status.set(WsStatus.PROTOCOL_ERROR,
-                    "Handshake error",
-                    conn.isClientSide());
-            conn.status.error = err;
-            conn.closeSocket();
-            WsConnection.callHandler(conn, err); // onError
+            handshakeError(conn, err);
         }
     }
 
+// the connection streams must be initialized
+    static void handshake(WsConnection conn)
+            throws IOException, URISyntaxException, NoSuchAlgorithmException {
+        if (conn.isClientSide()) {
+            handshakeServer(conn);
+        } else {
+            handshakeClient(conn);
+        }
+        conn.socket.setSoTimeout(conn.wsp.connectionSoTimeout);
+        conn.status.code = WsStatus.IS_OPEN;
+        conn.status.remotely = !conn.isClientSide();
+        if (conn.wsp.pingInterval > 0) {
+            conn.keepAlive = (new WsKeepAlive(conn)).start();
+        }
+    }
+
+    static void handshakeError(WsConnection conn, Throwable err) {
+        conn.status.set(WsStatus.PROTOCOL_ERROR,
+                "Handshake error",
+                conn.isClientSide());
+        conn.status.error = err;
+        conn.closeSocket();
+        conn.dispatch(err); // onError
+    }
+
     static void handshakeClient(WsConnection conn)
             throws IOException, URISyntaxException, NoSuchAlgorithmException {
         conn.requestHead = (new HttpHead()).read(conn.inStream);
@@ -6,9 +6,14 @@
  */
 package org.miktim.websocket;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.Socket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 class WsIo {
@@ -35,60 +40,277 @@ class WsIo {
         return bytesCnt;
     }
 
+    // sets the connection socket options, see WsParameters.setSocketOptions
+    static void setSocketOptions(Socket socket, WsParameters wsp) throws SocketException {
+        socket.setTcpNoDelay(wsp.tcpNoDelay);
+        if (wsp.sendBufferSize > 0) {
+            socket.setSendBufferSize(wsp.sendBufferSize);
+        }
+        if (wsp.receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(wsp.receiveBufferSize);
+        }
+    }
+
+    static final int MAX_HEADER_LENGTH = 14; // masked frame with 64bit payload length
+
     static void sendControlFrame(WsConnection conn, int opFrame, byte[] payload, int payloadLen)
             throws IOException {
-        sendFrame(conn, opFrame, Arrays.copyOf(payload, payloadLen), payloadLen);
+        byte[] frame = new byte[MAX_HEADER_LENGTH + payloadLen];
+        System.arraycopy(payload, 0, frame, MAX_HEADER_LENGTH, payloadLen);
+        sendFrame(conn, opFrame, frame, MAX_HEADER_LENGTH, payloadLen, true);
     }
 
-    static void sendFrame(WsConnection conn, int opFrame, byte[] payload, int payloadLen)
-            throws IOException {
+// The payload is located at buf[off], off >= MAX_HEADER_LENGTH.
+// The header is built in place just before the payload, so the frame
+// is written by a single write. The client payload is masked in place.
+// The output stream is flushed on request (once per message)
+// by the flush policy, see WsFlusher.
+    static void sendFrame(WsConnection conn, int opFrame, byte[] buf, int off,
+            int payloadLen, boolean flush) throws IOException {
         synchronized (conn.outStream) {
             if (conn.status.code != WsStatus.IS_OPEN) { // 
                 throw new SocketException("WebSocket closed");
             }
 // client MUST mask payload, server MUST NOT        
             boolean masked = conn.isClientSide();
-            byte[] header = new byte[14]; //hopefully initialized with zeros
-
-            header[0] = (byte) opFrame;
-            int headerLen = 2;
-
-            int tempLen = payloadLen;
-            if (tempLen < 126) {
-                header[1] = (byte) (tempLen);
-            } else if (tempLen < 0x10000) {
-                header[1] = (byte) 126;
-                header[2] = (byte) (tempLen >>> 8);
-                header[3] = (byte) tempLen;
-                headerLen += 2;
-            } else {
-                header[1] = (byte) 127;
-                headerLen += 4; // skip 4 zero bytes of 64bit payload length
-                for (int i = 3; i > 0; i--) {
-                    header[headerLen + i] = (byte) (tempLen & 0xFF);
-                    tempLen >>>= 8;
-                }
+            int headerLen = headerLength(payloadLen, masked);
+            int pos = off - headerLen;
+            frameHeader(buf, pos, opFrame, payloadLen);
+            if (masked) {
+                buf[pos + 1] |= WsListener.MASKED_DATA;
+                byte[] mask = randomBytes(4);
+                System.arraycopy(mask, 0, buf, off - 4, 4);
+                umaskPayload(mask, buf, off, payloadLen);
+            }
+            conn.outStream.write(buf, pos, headerLen + payloadLen);
+            if (flush) {
+                conn.flusher.flush(opFrame);
+            }
+        }
+    }
+
+// The payload is copied from src[srcOff], the caller data is not modified.
+// The client payload is masked while copying into buf after the header,
+// buf length >= MAX_HEADER_LENGTH + payloadLen. The server payload
+// is written from src after the header built in buf (zero copy).
+    static void sendFrame(WsConnection conn, int opFrame, byte[] src, int srcOff,
+            int payloadLen, byte[] buf, boolean flush) throws IOException {
+        synchronized (conn.outStream) {
+            if (conn.status.code != WsStatus.IS_OPEN) {
+                throw new SocketException("WebSocket closed");
+            }
+            int headerLen = frameHeader(buf, 0, opFrame, payloadLen);
+            if (conn.isClientSide()) { // client MUST mask payload
+                buf[1] |= WsListener.MASKED_DATA;
+                byte[] mask = randomBytes(4);
+                System.arraycopy(mask, 0, buf, headerLen, 4);
                 headerLen += 4;
+                umaskPayload(mask, 0, src, srcOff, buf, headerLen, payloadLen);
+                conn.outStream.write(buf, 0, headerLen + payloadLen);
+            } else if (conn.outStream instanceof WsChannel.Output) {
+                ((WsChannel.Output) conn.outStream).write(ByteBuffer.wrap(buf, 0, headerLen),
+                        ByteBuffer.wrap(src, srcOff, payloadLen));
+            } else { // buffered stream joins the short frames
+                conn.outStream.write(buf, 0, headerLen);
+                conn.outStream.write(src, srcOff, payloadLen);
             }
+            if (flush) {
+                conn.flusher.flush(opFrame);
+            }
+        }
+    }
 
-            if (masked) {
-                header[1] |= WsListener.MASKED_DATA;
+// The payload is the remaining part of the (direct) buffer, the buffer
+// position is advanced. buf length >= MAX_HEADER_LENGTH + payload length.
+// The client payload is copied into buf and masked, the server payload
+// is written by the channel without copying or copied by the parts of buf.
+    static void sendFrame(WsConnection conn, int opFrame, ByteBuffer payload,
+            byte[] buf, boolean flush) throws IOException {
+        int payloadLen = payload.remaining();
+        synchronized (conn.outStream) {
+            if (conn.status.code != WsStatus.IS_OPEN) {
+                throw new SocketException("WebSocket closed");
+            }
+            int headerLen = frameHeader(buf, 0, opFrame, payloadLen);
+            if (conn.isClientSide()) { // client MUST mask payload
+                buf[1] |= WsListener.MASKED_DATA;
                 byte[] mask = randomBytes(4);
-                System.arraycopy(mask, 0, header, headerLen, 4);
+                System.arraycopy(mask, 0, buf, headerLen, 4);
                 headerLen += 4;
-                umaskPayload(mask, payload, 0, payloadLen);
+                payload.get(buf, headerLen, payloadLen);
+                umaskPayload(mask, buf, headerLen, payloadLen);
+                conn.outStream.write(buf, 0, headerLen + payloadLen);
+            } else if (conn.outStream instanceof WsChannel.Output) {
+                ((WsChannel.Output) conn.outStream)
+                        .write(ByteBuffer.wrap(buf, 0, headerLen), payload);
+            } else {
+                conn.outStream.write(buf, 0, headerLen);
+                while (payload.hasRemaining()) {
+                    int len = Math.min(payload.remaining(), buf.length);
+                    payload.get(buf, 0, len);
+                    conn.outStream.write(buf, 0, len);
+                }
+            }
+            if (flush) {
+                conn.flusher.flush(opFrame);
             }
-            conn.outStream.write(header, 0, headerLen);
-            conn.outStream.write(payload, 0, payloadLen);
-            conn.outStream.flush();
         }
     }
 
+// The payload is the file region at pos, the file position is not changed.
+// The server payload of the non-blocking channel is transferred from
+// the file to the socket (sendfile), buf length >= MAX_HEADER_LENGTH.
+// Otherwise the payload is read into buf after the header,
+// buf length >= MAX_HEADER_LENGTH + payloadLen.
+    static void sendFrame(WsConnection conn, int opFrame, FileChannel file, long pos,
+            int payloadLen, byte[] buf, boolean flush) throws IOException {
+        if (!(conn.outStream instanceof WsChannel.Output)) {
+            ByteBuffer payload = ByteBuffer.wrap(buf, MAX_HEADER_LENGTH, payloadLen);
+            while (payload.hasRemaining()) {
+                if (file.read(payload, pos + payload.position() - MAX_HEADER_LENGTH) < 0) {
+                    throw new EOFException("Unexpected end of file");
+                }
+            }
+            sendFrame(conn, opFrame, buf, MAX_HEADER_LENGTH, payloadLen, flush);
+            return;
+        }
+        synchronized (conn.outStream) {
+            if (conn.status.code != WsStatus.IS_OPEN) {
+                throw new SocketException("WebSocket closed");
+            }
+            int headerLen = frameHeader(buf, 0, opFrame, payloadLen);
+            WsChannel.Output out = (WsChannel.Output) conn.outStream;
+            out.write(buf, 0, headerLen);
+            out.transfer(file, pos, payloadLen); // writes the buffered output first
+            if (flush) {
+                conn.flusher.flush(opFrame);
+            }
+        }
+    }
+
+    static int headerLength(int payloadLen, boolean masked) {
+        return (payloadLen < 126 ? 2 : payloadLen < 0x10000 ? 4 : 10)
+                + (masked ? 4 : 0);
+    }
+
+// fills unmasked frame header at buf[off], returns header length
+    static int frameHeader(byte[] buf, int off, int opFrame, int payloadLen) {
+        buf[off] = (byte) opFrame;
+        int headerLen = 2;
+
+        int tempLen = payloadLen;
+        if (tempLen < 126) {
+            buf[off + 1] = (byte) (tempLen);
+        } else if (tempLen < 0x10000) {
+            buf[off + 1] = (byte) 126;
+            buf[off + 2] = (byte) (tempLen >>> 8);
+            buf[off + 3] = (byte) tempLen;
+            headerLen += 2;
+        } else {
+            buf[off + 1] = (byte) 127;
+            for (int i = 9; i > 1; i--) { // 64bit payload length
+                buf[off + i] = (byte) (tempLen & 0xFF);
+                tempLen >>>= 8;
+            }
+            headerLen += 8;
+        }
+        return headerLen;
+    }
+
+// encodes the message into unmasked (server) frames, see WsConnection.syncSend
+    static byte[] encodeFrames(byte[] message, int off, int len, boolean isText,
+            int payloadBufferLength) {
+        int frames = (int) Math.max(1L,
+                (len + (long) payloadBufferLength - 1) / payloadBufferLength);
+        int headerLen = headerLength(Math.min(len, payloadBufferLength), false);
+        byte[] buf = new byte[len + frames * headerLen];
+        int op = isText ? WsListener.OP_TEXT : WsListener.OP_BINARY;
+        int pos = 0;
+        do {
+            int payloadLen = Math.min(len, payloadBufferLength);
+            len -= payloadLen;
+            pos += frameHeader(buf, pos, len == 0 ? op | WsListener.OP_FINAL : op,
+                    payloadLen);
+            System.arraycopy(message, off, buf, pos, payloadLen);
+            pos += payloadLen;
+            off += payloadLen;
+            op = WsListener.OP_CONTINUATION;
+        } while (len > 0);
+        return pos == buf.length ? buf : Arrays.copyOf(buf, pos);
+    }
+
 // unmask/mask payload
     static void umaskPayload(byte[] mask, byte[] payload, int off, int len) {
-        for (int i = 0; i < len; i++) {
-            payload[off++] ^= mask[i & 3];
+        umaskPayload(mask, 0, payload, off, len);
+    }
+
+// unmask/mask a part of the payload, maskOff is the offset of the part in the frame payload
+    static void umaskPayload(byte[] mask, long maskOff, byte[] payload, int off, int len) {
+        umaskPayload(mask, maskOff, payload, off, payload, off, len);
+    }
+
+    static final int MASK_WORD_THRESHOLD = 32; // shorter payloads are masked by bytes
+// ByteBuffer long access is intrinsic since Java 9 (VarHandle era),
+// older JVMs assemble longs byte by byte, the unrolled scalar loop is faster
+    static final boolean MASK_BY_WORDS = hasClass("java.lang.invoke.VarHandle");
+
+    static boolean hasClass(String name) {
+        try {
+            Class.forName(name);
+            return true;
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+// unmask/mask the source part of the payload into the destination in one pass
+    static void umaskPayload(byte[] mask, long maskOff, byte[] src, int srcOff,
+            byte[] dst, int dstOff, int len) {
+        int m = (int) (maskOff & 3);
+        int i = 0;
+        if (len >= MASK_WORD_THRESHOLD) {
+            i = MASK_BY_WORDS ? umaskWords(mask, m, src, srcOff, dst, dstOff, len)
+                    : umaskUnrolled(mask, m, src, srcOff, dst, dstOff, len);
+        }
+        for (; i < len; i++) {
+            dst[dstOff + i] = (byte) (src[srcOff + i] ^ mask[(m + i) & 3]);
+        }
+    }
+
+// eight bytes at a time with the replicated mask, returns the processed length
+    private static int umaskWords(byte[] mask, int m, byte[] src, int srcOff,
+            byte[] dst, int dstOff, int len) {
+        long lmask = 0L;
+        for (int j = 0; j < 8; j++) {
+            lmask |= (mask[(m + j) & 3] & 0xFFL) << (LITTLE_ENDIAN ? 8 * j : 56 - 8 * j);
+        }
+// the views are not cached: they would keep the caller arrays reachable
+        ByteBuffer sbuf = ByteBuffer.wrap(src).order(ByteOrder.nativeOrder());
+        ByteBuffer dbuf = src == dst ? sbuf : ByteBuffer.wrap(dst).order(ByteOrder.nativeOrder());
+        int i = 0;
+        for (int end = len - 7; i < end; i += 8) {
+            dbuf.putLong(dstOff + i, sbuf.getLong(srcOff + i) ^ lmask);
+        }
+        return i;
+    }
+
+    static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+// four bytes at a time, returns the processed length
+    private static int umaskUnrolled(byte[] mask, int m, byte[] src, int srcOff,
+            byte[] dst, int dstOff, int len) {
+        byte m0 = mask[m];
+        byte m1 = mask[(m + 1) & 3];
+        byte m2 = mask[(m + 2) & 3];
+        byte m3 = mask[(m + 3) & 3];
+        int i = 0;
+        for (int end = len - 3; i < end; i += 4) {
+            dst[dstOff + i] = (byte) (src[srcOff + i] ^ m0);
+            dst[dstOff + i + 1] = (byte) (src[srcOff + i + 1] ^ m1);
+            dst[dstOff + i + 2] = (byte) (src[srcOff + i + 2] ^ m2);
+            dst[dstOff + i + 3] = (byte) (src[srcOff + i + 3] ^ m3);
         }
+        return i;
     }
 
 }
@@ -0,0 +1,112 @@
+/*
+ * WsKeepAlive. MIT (c) 2026 miktim@mail.ru
+ * Keepalive ping scheduler and round-trip time meter.
+ * The pings are timed by the shared WebSocket timer and sent by the
+ * executor (see WsParameters.setExecutor) or by the shared pool of the
+ * ping threads.
+ * The ping payload is the sending time, the pong of the last ping
+ * gives the round-trip time.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+
+class WsKeepAlive implements Runnable {
+
+    private static final Random random = new Random();
+    private static ExecutorService sender = null; // shared ping senders
+
+    private final WsConnection conn;
+    private volatile WsTimer.Task task = null;
+    private volatile byte[] pingPayload = null; // unanswered ping
+    volatile long lastRtt = -1L; // microseconds
+    volatile long minRtt = -1L;
+    volatile long smoothedRtt = -1L;
+
+    WsKeepAlive(WsConnection conn) {
+        this.conn = conn;
+    }
+
+    private synchronized static Executor sender() {
+        if (sender == null) {
+            sender = WsThreads.newPool("WsKeepAlive");
+        }
+        return sender;
+    }
+
+    WsKeepAlive start() {
+        int interval = conn.wsp.pingInterval;
+        int jitter = Math.min(conn.wsp.pingJitter, interval - 1);
+        if (jitter > 0) {
+            interval += random.nextInt(2 * jitter + 1) - jitter;
+        }
+        task = WebSocket.timer.schedule(new WsTimer.Task() {
+            @Override
+            public void run() { // the timer thread must not block
+                Executor executor = conn.wsp.executor;
+                (executor != null ? executor : sender()).execute(WsKeepAlive.this);
+            }
+        }, interval);
+        return this;
+    }
+
+    void stop() {
+        WsTimer.Task t = task;
+        if (t != null) {
+            t.cancel();
+        }
+    }
+
+    // send the timestamped ping
+    @Override
+    public void run() {
+        if (!conn.isOpen()) {
+            return;
+        }
+        long time = System.nanoTime();
+        byte[] payload = new byte[8];
+        for (int i = 7; i >= 0; i--) {
+            payload[i] = (byte) time;
+            time >>>= 8;
+        }
+        pingPayload = payload;
+        try {
+            WsIo.sendControlFrame(conn, WsListener.OP_PING, payload, payload.length);
+        } catch (IOException e) {
+            conn.closeDueTo(WsStatus.ABNORMAL_CLOSURE, e.getMessage(), e);
+            return;
+        }
+        if (conn.isOpen()) {
+            start();
+        }
+    }
+
+    // returns false if the pong does not match the last ping
+    boolean pong(byte[] payload) {
+        long now = System.nanoTime();
+        byte[] ping = pingPayload;
+        if (ping == null || !Arrays.equals(ping, payload)) {
+            return false;
+        }
+        pingPayload = null;
+        long time = 0L;
+        for (int i = 0; i < 8; i++) {
+            time = (time << 8) | (payload[i] & 0xFF);
+        }
+        long rtt = (now - time) / 1000L;
+        lastRtt = rtt;
+        if (minRtt < 0 || rtt < minRtt) {
+            minRtt = rtt;
+        }
+// RFC 6298: SRTT = 7/8 SRTT + 1/8 R
+        smoothedRtt = smoothedRtt < 0 ? rtt : (smoothedRtt * 7 + rtt) / 8;
+        return true;
+    }
+
+}
@@ -22,10 +22,24 @@ class WsListener extends Thread {
     private WsMessage messageStream = null;
     private long messageLength;
 
+    Thread runner = this; // the thread running this listener (platform or virtual)
+
     WsListener(WsConnection conn) {
         this.conn = conn;
     }
 
+    @Override
+    public void start() {
+        if (conn.wsp.virtualThreads) {
+            runner = WsThreads.startVirtual(this, "WsListener" + getName());
+            if (runner != null) {
+                return;
+            }
+            runner = this;
+        }
+        super.start();
+    }
+
     static final int OP_FINAL = 0x80;
     static final int OP_CONTINUATION = 0x0;
     static final int OP_TEXT = 0x1;
@@ -39,6 +53,7 @@ class WsListener extends Thread {
     static final int MASKED_DATA = 0x80;
     static final byte[] PING_PAYLOAD = "PingPong".getBytes();
     static final byte[] EMPTY_PAYLOAD = new byte[0];
+    static final int MAX_CHUNK_LENGTH = 0x10000; // pooled data payload chunk
 
     @Override
     public void run() {
@@ -65,33 +80,10 @@ class WsListener extends Thread {
 
                 readHeader(b2);
 
-// check frame op sequence
-                switch (b1) {
-                    case OP_BINARY:
-                    case OP_TEXT:
-                    case OP_BINARY_FINAL:
-                    case OP_TEXT_FINAL:
-                        if (messageStream == null) {
-                            dataFrame(b1);
-                            break;
-                        }
-                    case OP_CONTINUATION:
-                        if (messageStream != null) {
-                            dataFrame(b1);
-                            break;
-                        }
-                    case OP_FINAL:
-                        if (messageStream != null) {
-                            dataFrame(b1);
-                            break;
-                        }
-                    case OP_CLOSE:
-                    case OP_PING:
-                    case OP_PONG:
-                        controlFrame(b1);
-                        break;
-                    default:
-                        throw new ProtocolException("Unexpected opcode");
+                if (isDataFrame(b1, messageStream != null)) {
+                    dataFrame(b1);
+                } else {
+                    controlFrame(b1);
                 }
 
             } catch (SocketTimeoutException e) {
@@ -127,8 +119,8 @@ class WsListener extends Thread {
         if (messageStream != null) {
             messageStream.close(); // incomplete message
         }
-        if (conn.messageQueue.remainingCapacity() > 0) {
-            conn.messageQueue.add(new WsMessage());
+        if (conn.messageQueue != null) {
+            conn.messageQueue.add(new WsMessage()); // end of queue
         }
     }
 
@@ -150,6 +142,9 @@ class WsListener extends Thread {
                 payloadLength <<= 8;
                 payloadLength += (payloadMask[i] & 0xFF);
             }
+            if (payloadLength < 0L) { // the most significant bit MUST be 0
+                throw new ProtocolException("Invalid payload length");
+            }
         }
 // get payload mask
         maskedPayload = (b2 & MASKED_DATA) != 0;
@@ -163,9 +158,14 @@ class WsListener extends Thread {
 
     boolean dataFrame(int opData) throws IOException, IllegalStateException {
         if (messageStream == null) {
-            messageStream = new WsMessage((opData & OP_TEXT) > 0);
+            if (conn.inbound != null) {
+                conn.inbound.await(null); // pending messages, see WsBudget
+            }
+            messageStream = new WsMessage((opData & OP_TEXT) > 0, conn);
             messageLength = 0L;
-            conn.messageQueue.add(messageStream);
+            if (!conn.inlineDispatch) {
+                conn.queueMessage(messageStream);
+            }
         }
         messageLength += payloadLength;
         if (conn.wsp.maxMessageLength != -1 && messageLength > conn.wsp.maxMessageLength) {
@@ -177,17 +177,61 @@ class WsListener extends Thread {
             skipPayload();
             return false;
         }
-        byte[] payload = readPayload();
-        if (payload.length > 0) {
-            messageStream.putPayload(payload);
+        readChunks();
+        if (messageStream.closed) {
+            return false;
         }
         if ((opData & OP_FINAL) != 0) {
-            messageStream.putPayload(EMPTY_PAYLOAD); // eof
+            if (!messageStream.isValidText(EMPTY_PAYLOAD, 0)) {
+                invalidText(conn, messageStream);
+                return false;
+            }
+            WsMessage msg = messageStream;
             messageStream = null;
+            msg.putPayload(EMPTY_PAYLOAD); // eof
+            if (conn.inlineDispatch) {
+                conn.dispatch(msg); // onMessage
+            }
         }
         return true;
     }
 
+    // read the data frame payload into pooled chunks of the message
+    void readChunks() throws IOException {
+        long chunkOff = 0L; // offset of the chunk in the frame payload
+        while (chunkOff < payloadLength) {
+            int len = (int) Math.min(payloadLength - chunkOff, MAX_CHUNK_LENGTH);
+            if (conn.inbound != null) {
+                conn.inbound.await(messageStream); // stop reading the socket
+            }
+            byte[] chunk = WsBufferPool.get(len);
+// a chunk longer than the BufferedInputStream buffer is read directly from the socket
+            if (WsIo.readFully(conn.inStream, chunk, 0, len) != len) {
+                WsBufferPool.put(chunk);
+                throw new EOFException("Unexpected EOF");
+            }
+            if (maskedPayload) {
+                WsIo.umaskPayload(payloadMask, chunkOff, chunk, 0, len);
+            }
+            chunkOff += len;
+            if (!messageStream.isValidText(chunk, len)) {
+                WsBufferPool.put(chunk);
+                invalidText(conn, messageStream);
+                payloadLength -= chunkOff;
+                skipPayload();
+                return;
+            }
+            messageStream.putPayload(chunk, len);
+        }
+    }
+
+    // text message is not UTF-8, see also WsChannel
+    static void invalidText(WsConnection conn, WsMessage msg) {
+        IOException e = new ProtocolException("Invalid UTF-8");
+        conn.closeDueTo(WsStatus.INVALID_FRAME, e.getMessage(), e);
+        msg.close();
+    }
+
     byte[] readPayload() throws IOException {
 // read frame payload
         byte[] framePayload = new byte[(int) payloadLength];
@@ -202,6 +246,30 @@ class WsListener extends Thread {
         return framePayload;
     }
 
+    // check frame op sequence: true - data frame, false - control frame
+    static boolean isDataFrame(int b1, boolean inMessage) throws ProtocolException {
+        switch (b1) {
+            case OP_BINARY:
+            case OP_TEXT:
+            case OP_BINARY_FINAL:
+            case OP_TEXT_FINAL:
+                if (!inMessage) {
+                    return true;
+                }
+            case OP_CONTINUATION:
+            case OP_FINAL:
+                if (inMessage) {
+                    return true;
+                }
+            case OP_CLOSE:
+            case OP_PING:
+            case OP_PONG:
+                return false;
+            default:
+                throw new ProtocolException("Unexpected opcode");
+        }
+    }
+
     boolean controlFrame(int b1) throws IOException {
         if (payloadLength > 125L) {
             throw new ProtocolException("Payload too big");
@@ -209,16 +277,24 @@ class WsListener extends Thread {
 
         byte[] framePayload = readPayload();
 
-        switch (b1) {
-            case OP_PONG: {
-                if (pingFrameSent
-                        && Arrays.equals(framePayload, PING_PAYLOAD)) {
-                    pingFrameSent = false;
-                    return true;
-                } else {
-                    throw new ProtocolException("Unexpected pong");
-                }
+        if (b1 == OP_PONG) {
+            if (pingFrameSent
+                    && Arrays.equals(framePayload, PING_PAYLOAD)) {
+                pingFrameSent = false;
+                return true;
+            } else if (conn.pong(framePayload)) { // keepalive
+                return true;
+            } else {
+                throw new ProtocolException("Unexpected pong");
             }
+        }
+        return controlFrame(conn, b1, framePayload);
+    }
+
+    // ping and close frames processing. See also WsChannel
+    static boolean controlFrame(WsConnection conn, int b1, byte[] framePayload)
+            throws IOException {
+        switch (b1) {
             case OP_PING:
                 if (conn.isOpen()) {
                     WsIo.sendControlFrame(conn, OP_PONG, framePayload, framePayload.length);
@@ -254,7 +330,14 @@ class WsListener extends Thread {
 
     void skipPayload() throws IOException {
         while (payloadLength > 0) {
-            payloadLength -= conn.inStream.skip(payloadLength);
+            long skipped = conn.inStream.skip(payloadLength);
+            if (skipped <= 0) {
+                if (conn.inStream.read() < 0) {
+                    throw new EOFException("Unexpected EOF");
+                }
+                skipped = 1;
+            }
+            payloadLength -= skipped;
         }
     }
 
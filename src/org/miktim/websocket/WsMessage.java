@@ -5,9 +5,17 @@
 package org.miktim.websocket;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
 import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * WebSocket message.
@@ -19,18 +27,44 @@ import java.util.ArrayDeque;
  */
 public class WsMessage extends InputStream {
 
-    final ArrayDeque<byte[]> payloads = new ArrayDeque<byte[]>(); // Queue?
+    static final ByteBuffer EOF_PAYLOAD = ByteBuffer.allocate(0);
+
+// payload chunks, the chunk arrays are returned to the WsBufferPool when read,
+// the spilled chunks are direct slices of the mapped temp file
+    final ArrayDeque<ByteBuffer> payloads = new ArrayDeque<ByteBuffer>(); // Queue?
+// j.u.c. lock does not pin the virtual thread carrier while waiting
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition hasPayload = lock.newCondition();
     volatile long available = 0;
     boolean isText;
+    WsUtf8 validator = null; // incoming text validator
+    WsBudget.Account account = null; // inbound budget of the connection or null
+    volatile long accounted = 0; // queued bytes counted by the budget
+    boolean dispatched = false; // counted by the budget as passed to the handler
+    private int spillThreshold = -1; // see WsParameters.setSpill
+    private File spillDirectory = null;
+    private WsSpill spill = null; // temp file of the large message
+    private long received = 0; // message length
+    private byte[] decodeBuffer = null; // spilled text decoding
 
-    byte[] payload = new byte[0]; // current payload
-    int off = 0; // offset in the current payload
+    ByteBuffer payload = EOF_PAYLOAD; // current payload
     boolean eof = false;
+    boolean complete = false; // end of message is queued
     boolean closed = false; // stream is closed
 
     WsMessage(boolean isText) {
         super();
         this.isText = isText;
+        if (isText) {
+            validator = new WsUtf8();
+        }
+    }
+    // incoming message of the connection
+    WsMessage(boolean isText, WsConnection conn) {
+        this(isText);
+        account = conn.inbound;
+        spillThreshold = conn.wsp.spillThreshold;
+        spillDirectory = conn.wsp.spillDirectory;
     }
     WsMessage() { // end of message queue. See WsListener.run, WsConnection.waitMessage
         available = -1;
@@ -45,14 +79,14 @@ public class WsMessage extends InputStream {
 /*
     @Override
     public int available() {
-        return (int) Math.min(available + payload.length - off, Integer.MAX_VALUE);
+        return (int) Math.min(available + payload.remaining(), Integer.MAX_VALUE);
     }
 */
     @Override
     public int read() throws IOException {
         while (!eof) {
-            if (off < payload.length) {
-                return ((int) payload[off++]) & 0xFF;
+            if (payload.hasRemaining()) {
+                return ((int) payload.get()) & 0xFF;
             }
             getPayload();
         }
@@ -60,32 +94,157 @@ public class WsMessage extends InputStream {
         return -1; // end of message
     }
 
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (!eof) {
+            int n = payload.remaining();
+            if (n > 0) {
+                n = Math.min(n, len);
+                payload.get(b, off, n);
+                return n;
+            }
+            getPayload();
+        }
+        checkClosed();
+        return -1; // end of message
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && !eof) {
+            int len = (int) Math.min(payload.remaining(), n - skipped);
+            if (len > 0) {
+                payload.position(payload.position() + len);
+                skipped += len;
+            } else {
+                getPayload();
+            }
+        }
+        checkClosed();
+        return skipped;
+    }
+
+    /**
+     * Reads all remaining bytes of the message and writes them
+     * to the given output stream in the order that they are read.
+     *
+     * @param out the output stream.
+     * @return the number of bytes transferred.
+     * @throws IOException if an I/O error occurs.
+     * @since 5.1
+     */
+    public long transferTo(OutputStream out) throws IOException {
+        long transferred = 0;
+        while (!eof) {
+            int len = payload.remaining();
+            if (len > 0) {
+                if (payload.hasArray()) {
+                    out.write(payload.array(), payload.arrayOffset() + payload.position(), len);
+                    payload.position(payload.limit());
+                } else { // spilled
+                    Channels.newChannel(out).write(payload);
+                }
+                transferred += len;
+            }
+            getPayload();
+        }
+        checkClosed();
+        return transferred;
+    }
+
     private void getPayload() throws IOException {
-        synchronized (payloads) {
+        if (payload.hasArray()) {
+            WsBufferPool.put(payload.array()); // the chunk is read
+        }
+        lock.lock();
+        try {
             if (!eof) {
                 while ((payload = payloads.poll()) == null) {
                     try {
-                        payloads.wait();
+                        hasPayload.await();
                     } catch (InterruptedException ignored) {
                     }
                 }
-                available -= payload.length;
+                available -= payload.remaining();
+                if (payload.hasArray()) {
+                    release(payload.remaining());
+                }
+                if (payload == EOF_PAYLOAD) {
+                    closeSpill(); // end of message
+                }
             } else {
-                payload = new byte[0];
+                payload = EOF_PAYLOAD;
             }
+        } finally {
+            lock.unlock();
         }
-        off = 0;
-        eof = payload.length == 0;
+        eof = !payload.hasRemaining();
         checkClosed();
     }
 
-    void putPayload(byte[] buf) {
-        synchronized (payloads) {
+    // validates the incoming text chunk, zero length - end of message
+    boolean isValidText(byte[] buf, int len) {
+        if (validator == null) {
+            return true;
+        }
+        return len == 0 ? validator.isComplete() : validator.validate(buf, 0, len);
+    }
+
+    void putPayload(byte[] buf) throws IOException {
+        putPayload(buf, buf.length);
+    }
+
+    // puts the payload chunk, zero length - end of message
+    void putPayload(byte[] buf, int len) throws IOException {
+        ByteBuffer chunk = len == 0 ? EOF_PAYLOAD : ByteBuffer.wrap(buf, 0, len);
+        lock.lock();
+        try {
             if (!closed) {
-                payloads.add(buf);
-                available += buf.length;
+                received += len;
+                if (len > 0 && spillThreshold >= 0 && received > spillThreshold) {
+                    spill(buf, len);
+                } else {
+                    payloads.add(chunk);
+                    if (account != null) {
+                        account.acquire(len);
+                        accounted += len;
+                    }
+                }
+                available += len;
+                complete = len == 0;
+            } else {
+                WsBufferPool.put(buf);
+            }
+            hasPayload.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // under lock: appends the chunk to the temp file, the chunk is recycled
+    private void spill(byte[] buf, int len) throws IOException {
+        try {
+            if (spill == null) {
+                spill = new WsSpill(spillDirectory);
             }
-            payloads.notifyAll();
+            spill.append(buf, 0, len, payloads);
+        } finally {
+            WsBufferPool.put(buf);
+        }
+    }
+
+    // under lock
+    private void closeSpill() {
+        if (spill != null) {
+            spill.close();
+            spill = null;
         }
     }
 
@@ -97,16 +256,65 @@ public class WsMessage extends InputStream {
      */
     @Override
     public void close() {
-        synchronized (payloads) {
+        lock.lock();
+        try {
             closed = true;
+            for (ByteBuffer chunk : payloads) {
+                if (chunk.hasArray()) {
+                    WsBufferPool.put(chunk.array());
+                }
+            }
             payloads.clear();
             available = 0;
+            release(accounted);
+            closeSpill();
             eof = true;
-            payloads.add(new byte[0]);
-            payloads.notifyAll();
+            payloads.add(EOF_PAYLOAD);
+            hasPayload.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // under lock: the queued bytes are read or discarded
+    private void release(long len) {
+        if (account != null && len > 0) {
+            accounted -= len;
+            account.release(len);
+        }
+    }
+
+    // the message is passed to the handler
+    void dispatched() {
+        dispatched = true;
+        if (account != null) {
+            account.dispatched();
+        }
+    }
+
+    // the handler has returned from onMessage,
+    // the unread remainder of the message is no longer counted
+    void handled() {
+        WsBudget.Account acc;
+        lock.lock();
+        try {
+            release(accounted);
+            acc = account;
+            account = null;
+        } finally {
+            lock.unlock();
+        }
+        if (acc != null && dispatched) {
+            acc.handled();
         }
     }
 
+    // the dispatched message is dropped unhandled
+    void discard() {
+        close();
+        handled();
+    }
+
     private void checkClosed() throws IOException {
         if (closed) {
             throw new IOException("WebSocket stream closed");
@@ -115,13 +323,79 @@ public class WsMessage extends InputStream {
 
     ByteArrayOutputStream toByteOutStream() throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        while (!eof) {
-            getPayload();
-            bos.write(payload);
-        }
+        transferTo(bos);
         return bos;
     }
 
+    // removes the unread remainder of the completely received message
+    // if it is a single chunk, otherwise returns null
+    private ByteBuffer singleChunk() {
+        lock.lock();
+        try {
+            if (!complete || closed || eof) {
+                return null;
+            }
+            ByteBuffer chunk = payload;
+            if (chunk.hasRemaining()) {
+                if (payloads.size() != 1 || !chunk.hasArray()) { // end of message only
+                    return null;
+                }
+            } else if (payloads.size() == 2 && payloads.peek().hasArray()
+                    && chunk.hasArray()) { // chunk and end of message
+                WsBufferPool.put(chunk.array());
+                chunk = payloads.peek();
+            } else {
+                return null;
+            }
+            payloads.clear();
+            available = 0;
+            release(accounted);
+            payload = EOF_PAYLOAD;
+            eof = true;
+            return chunk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // unread length of the completely received message or -1
+    private long remaining() {
+        lock.lock();
+        try {
+            return complete && !closed ? available + payload.remaining() : -1L;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private byte[] readAll() throws IOException {
+        ByteBuffer chunk = singleChunk();
+        if (chunk != null) {
+            byte[] buf = chunk.array();
+            if (chunk.position() == 0 && chunk.remaining() == buf.length) {
+                return buf; // no copy
+            }
+            byte[] b = new byte[chunk.remaining()];
+            chunk.get(b);
+            WsBufferPool.put(buf);
+            return b;
+        }
+        long len = remaining();
+        if (len < 0 || len > Integer.MAX_VALUE - 8) {
+            return toByteOutStream().toByteArray();
+        }
+        byte[] b = new byte[(int) len]; // pre-sized
+        int off = 0;
+        int n;
+        while (off < b.length && (n = read(b, off, b.length - off)) > 0) {
+            off += n;
+        }
+        if (read() != -1) {
+            throw new IOException("Unexpected message length");
+        }
+        return b;
+    }
+
     /**
      * Reads the contents of the message as a string.
      *
@@ -133,12 +407,123 @@ public class WsMessage extends InputStream {
 //            if (!isText()) {
 //                throw new IOException("Is not a text");
 //            }
-            return toByteOutStream().toString("UTF-8");
+            ByteBuffer chunk = singleChunk();
+            if (chunk != null) {
+                String s = new String(chunk.array(), chunk.position(),
+                        chunk.remaining(), "UTF-8");
+                WsBufferPool.put(chunk.array());
+                return s;
+            }
+            CharBuffer chars = decodeAll();
+            return new String(chars.array(), 0, chars.limit());
         } catch (Throwable th) {
             throw new WsError("asString error", th);
         }
     }
 
+    /**
+     * Reads the contents of the message as a character sequence.
+     * <br>
+     * The payload chunks are decoded in one pass without
+     * intermediate byte copies.
+     *
+     * @return WebSocket message as a decoded CharSequence.
+     * @throws WsError on any exception
+     * @since 5.1
+     */
+    public CharSequence asCharSequence() {
+        try {
+            return decodeAll();
+        } catch (Throwable th) {
+            throw new WsError("asCharSequence error", th);
+        }
+    }
+
+    /**
+     * Returns the reader of the UTF-8 encoded text message.
+     * <br>
+     * The payload chunks are decoded as they are read, the message
+     * is not buffered. Closing the reader closes the message.
+     *
+     * @return the message reader.
+     * @since 5.1
+     */
+    public Reader asReader() {
+        return new Reader() {
+            private final WsUtf8 decoder = new WsUtf8();
+
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                if (off < 0 || len < 0 || len > cbuf.length - off) {
+                    throw new IndexOutOfBoundsException();
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                return decode(decoder, CharBuffer.wrap(cbuf, off, len));
+            }
+
+            @Override
+            public void close() {
+                WsMessage.this.close();
+            }
+        };
+    }
+
+    // decodes the next chars, returns the number of chars or -1 at the end
+    private int decode(WsUtf8 decoder, CharBuffer dst) throws IOException {
+        int start = dst.position();
+        while (true) {
+            if (payload.hasArray()) {
+                decoder.decode(payload, dst);
+            } else { // spilled chunk
+                decodeDirect(decoder, dst);
+            }
+            if (dst.position() > start) {
+                return dst.position() - start;
+            }
+            if (eof) {
+                checkClosed();
+                if (decoder.finish()) { // incomplete character
+                    dst.put(WsUtf8.REPLACEMENT);
+                    return 1;
+                }
+                return -1;
+            }
+            getPayload();
+        }
+    }
+
+    // decodes the direct chunk through the heap buffer
+    private void decodeDirect(WsUtf8 decoder, CharBuffer dst) {
+        if (decodeBuffer == null) {
+            decodeBuffer = new byte[8192];
+        }
+        int pos = payload.position();
+        int len = Math.min(payload.remaining(), decodeBuffer.length);
+        payload.get(decodeBuffer, 0, len);
+        ByteBuffer src = ByteBuffer.wrap(decodeBuffer, 0, len);
+        decoder.decode(src, dst);
+        payload.position(pos + src.position()); // undecoded bytes are returned
+    }
+
+    // decodes the rest of the message, the chars are at the buffer array start
+    private CharBuffer decodeAll() throws IOException {
+        long len = remaining(); // chars <= bytes
+        CharBuffer chars = CharBuffer.allocate(len < 0 || len > Integer.MAX_VALUE - 8
+                ? 1024 : (int) len + 1);
+        WsUtf8 decoder = new WsUtf8();
+        while (decode(decoder, chars) >= 0) {
+            if (!chars.hasRemaining()) {
+                CharBuffer grown = CharBuffer.allocate(chars.capacity() * 2);
+                chars.flip();
+                chars = grown.put(chars);
+            }
+        }
+        chars.flip();
+        return chars;
+    }
+
     /**
      * Reads the contents of the message as an array of bytes.
      *
@@ -147,10 +532,31 @@ public class WsMessage extends InputStream {
      */
     public byte[] asByteArray() {
         try {
-            return toByteOutStream().toByteArray();
+            return readAll();
         } catch (Throwable th) {
             throw new WsError("asByteArray error", th);
         }
     }
-    
+
+    /**
+     * Reads the contents of the message as a byte buffer.
+     * <br>
+     * A message received as a single chunk is returned without copying.
+     *
+     * @return WebSocket message as a ByteBuffer.
+     * @throws WsError on any exception
+     * @since 5.1
+     */
+    public ByteBuffer asByteBuffer() {
+        try {
+            ByteBuffer chunk = singleChunk();
+            if (chunk == null) {
+                chunk = ByteBuffer.wrap(readAll());
+            }
+            return chunk.slice();
+        } catch (Throwable th) {
+            throw new WsError("asByteBuffer error", th);
+        }
+    }
+
 }
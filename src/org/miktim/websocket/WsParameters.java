@@ -5,8 +5,10 @@
  */
 package org.miktim.websocket;
 
+import java.io.File;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLParameters;
 
@@ -18,6 +20,47 @@ public class WsParameters {
 //    public static final int MIN_PAYLOAD_BUFFER_LENGTH = 125;
 //    public static final int MIN_INCOMING_MESSAGE_LENGTH = 125;
 
+    /**
+     * Send queue full: the message future fails.
+     * @see #setSendQueue(int, int)
+     * @since 5.1
+     */
+    public static final int SEND_QUEUE_FAIL = 0;
+    /**
+     * Send queue full: the sending thread waits for the queue space.
+     * @see #setSendQueue(int, int)
+     * @since 5.1
+     */
+    public static final int SEND_QUEUE_BLOCK = 1;
+    /**
+     * Send queue full: the message future fails and the connection
+     * is closed with status code 1008 (POLICY_VIOLATION).
+     * @see #setSendQueue(int, int)
+     * @since 5.1
+     */
+    public static final int SEND_QUEUE_CLOSE = 2;
+    /**
+     * Flush policy: the output is flushed at the end of each message.
+     * @see #setFlushPolicy(int, int, int)
+     * @since 5.1
+     */
+    public static final int FLUSH_MESSAGE = 0;
+    /**
+     * Flush policy: the messages sent by the handler or by the
+     * asynchronous send queue are flushed when the handler call
+     * returns or the queue is drained.
+     * @see #setFlushPolicy(int, int, int)
+     * @since 5.1
+     */
+    public static final int FLUSH_BATCH = 1;
+    /**
+     * Flush policy: the messages are flushed after the delay
+     * since the first unflushed message.
+     * @see #setFlushPolicy(int, int, int)
+     * @since 5.1
+     */
+    public static final int FLUSH_DELAY = 2;
+
     String[] subProtocols = null; // WebSocket subprotocol[s] in preferred order
     int handshakeSoTimeout = 2000; // millis, TLS and WebSocket open/close handshake timeout
     int connectionSoTimeout = 2000; // millis, data exchange timeout
@@ -27,6 +70,26 @@ public class WsParameters {
     int maxMessageLength = 1048576; // 1 MiB
     SSLParameters sslParameters = null;  // TLS parameters
     int maxMessages = 3; // 
+    int selectors = 0; // server selector loops, 0 - thread per connection
+    boolean virtualThreads = false; // run connections on Java 21+ virtual threads
+    Executor executor = null; // handler calls executor
+    boolean inlineDispatch = false; // single thread per connection
+    int pingInterval = 0; // millis, keepalive ping scheduler, 0 - disabled
+    int pingJitter = 0; // millis, random deviation of the ping interval
+    int acceptors = 1; // server accepting threads
+    boolean reusePort = false; // SO_REUSEPORT server socket per acceptor
+    int sendQueueLength = 16; // asynchronous send queue length
+    int sendQueueFull = SEND_QUEUE_FAIL; // queue full behavior
+    long inboundBudget = 0; // bytes, buffered incoming payloads of the server, 0 - unlimited
+    long connectionInboundBudget = 0; // bytes, per connection, 0 - unlimited
+    int spillThreshold = -1; // bytes, incoming message spill to the temp file, -1 - disabled
+    File spillDirectory = null; // temp files directory, null - system default
+    int flushPolicy = FLUSH_MESSAGE; // outgoing messages coalescing
+    int flushBufferLength = 16384; // bytes, output buffer of the coalesced messages
+    int flushDelay = 0; // microseconds, FLUSH_DELAY deadline
+    boolean tcpNoDelay = false; // TCP_NODELAY
+    int sendBufferSize = 0; // bytes, SO_SNDBUF, 0 - system default
+    int receiveBufferSize = 0; // bytes, SO_RCVBUF, 0 - system default
 
     /**
      * Creates default connection parameters.
@@ -52,6 +115,26 @@ public class WsParameters {
         clon.backlog = backlog;
         clon.maxMessageLength = maxMessageLength;
         clon.maxMessages = maxMessages;
+        clon.selectors = selectors;
+        clon.virtualThreads = virtualThreads;
+        clon.executor = executor;
+        clon.inlineDispatch = inlineDispatch;
+        clon.pingInterval = pingInterval;
+        clon.pingJitter = pingJitter;
+        clon.acceptors = acceptors;
+        clon.reusePort = reusePort;
+        clon.sendQueueLength = sendQueueLength;
+        clon.sendQueueFull = sendQueueFull;
+        clon.inboundBudget = inboundBudget;
+        clon.connectionInboundBudget = connectionInboundBudget;
+        clon.spillThreshold = spillThreshold;
+        clon.spillDirectory = spillDirectory;
+        clon.flushPolicy = flushPolicy;
+        clon.flushBufferLength = flushBufferLength;
+        clon.flushDelay = flushDelay;
+        clon.tcpNoDelay = tcpNoDelay;
+        clon.sendBufferSize = sendBufferSize;
+        clon.receiveBufferSize = receiveBufferSize;
         SSLParameters sslp = sslParameters;
         if (sslp != null) {
 // Android API 16
@@ -207,6 +290,7 @@ public class WsParameters {
      * incoming messages per connection.
      * Overflow of this value leads to an error and
      * connection closure with status code 1008 (POLICY_VIOLATION)
+     * unless the inbound budget is set.
      * @param maxMsgs maximum number of pending messages (min value is 1)
      * @return this
      */
@@ -224,6 +308,407 @@ public class WsParameters {
         return maxMessages;
     }
     
+    /**
+     * Sets the number of selector loops of the non-blocking server engine.
+     * <br>The non-blocking engine serves all the insecure server-side
+     * connections by a small set of threads. Handlers are called
+     * from the selector loop when the message is completely received,
+     * so they should not block for a long time.
+     * <br>The sends from the selector loop do not wait for the socket:
+     * up to 1 MiB of the unsent output is written when the socket
+     * becomes writable. A larger output and the file sends wait
+     * for the slow client and stall all the connections of the loop,
+     * use {@link WsConnection#sendAsync(java.io.InputStream, boolean)}
+     * or the executor ({@link #setExecutor(Executor)}) for them.
+     * <br>TLS servers and client connections ignore this parameter.
+     * @param num number of selector loops: 0 - thread per connection engine,
+     * less than 0 - one loop per available processor.
+     * @return this
+     * @since 5.1
+     */
+    public WsParameters setSelectors(int num) {
+        selectors = num;
+        return this;
+    }
+
+    /**
+     * Returns the number of selector loops of the non-blocking server engine.
+     * @return number of selector loops. Default: 0 (thread per connection).
+     */
+    public int getSelectors() {
+        return selectors;
+    }
+
+    /**
+     * Enables virtual threads for connections.
+     * <br>The WebSocket handshake, reading of the incoming messages
+     * and calls of the connection handler run on virtual threads.
+     * Java versions prior to 21 ignore this parameter.
+     * <br>Note: the connection and listener Thread objects are not started
+     * themselves, so {@link Thread#join()} and {@link Thread#isAlive()}
+     * of {@link WsConnection} are not applicable.
+     * @param enabled true to use virtual threads.
+     * @return this
+     * @since 5.1
+     */
+    public WsParameters setVirtualThreads(boolean enabled) {
+        virtualThreads = enabled;
+        return this;
+    }
+
+    /**
+     * Returns virtual threads enabled.
+     * @return true if so. Default: false.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Checks if virtual threads are supported by the Java runtime.
+     * @return true if so.
+     * @since 5.1
+     */
+    public static boolean isVirtualThreadsSupported() {
+        return WsThreads.isVirtualSupported();
+    }
+
+    /**
+     * Sets the executor of the connection handler calls.
+     * <br>Handler calls of each connection are queued and executed
+     * one by one in order, so the executor threads can be shared
+     * by any number of connections. The connection thread only reads
+     * incoming messages.
+     * <br>The number of messages waiting for the onMessage call
+     * is limited by {@link #setMaxMessages(int)}.
+     * @param executor handler calls executor or null to call handlers
+     * from the connection thread.
+     * @return this
+     * @since 5.1
+     */
+    public WsParameters setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Returns the executor of the connection handler calls.
+     * @return executor. Default: null.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Enables inline dispatch of the connection handler calls.
+     * <br>The connection thread reads incoming messages and calls
+     * the handler itself, onMessage is called when the message is
+     * completely received. This halves the number of threads
+     * and saves a thread switch per message, but the connection
+     * does not read the socket while the handler is running.
+     * <br>Ignored if the executor is set.
+     * @param enabled true to call the handler from the reading thread.
+     * @return this
+     * @see #setExecutor(Executor)
+     * @since 5.1
+     */
+    public WsParameters setInlineDispatch(boolean enabled) {
+        inlineDispatch = enabled;
+        return this;
+    }
+
+    /**
+     * Returns inline dispatch enabled.
+     * @return true if so. Default: false.
+     */
+    public boolean isInlineDispatch() {
+        return inlineDispatch;
+    }
+
+    /**
+     * Sets the keepalive ping interval.
+     * <br>Open connections send timestamped pings on the interval
+     * and measure the round-trip time by the pongs. The pings
+     * are scheduled by the single shared timer. Unsolicited pongs
+     * are ignored. The jitter spreads the pings of the connections
+     * opened at the same time.
+     * <br>This does not replace the connection socket timeout: set
+     * the interval less than the timeout to keep the connection alive.
+     * @param millis ping interval in milliseconds, 0 - disabled.
+     * @param jitter maximum random deviation of the interval in milliseconds.
+     * @return this
+     * @see WsConnection#getLastRtt()
+     * @see #setConnectionSoTimeout(int, boolean)
+     * @since 5.1
+     */
+    public WsParameters setPingInterval(int millis, int jitter) {
+        pingInterval = Math.max(millis, 0);
+        pingJitter = Math.max(jitter, 0);
+        return this;
+    }
+
+    /**
+     * Returns the keepalive ping interval.
+     * @return interval in milliseconds. Default: 0 (disabled).
+     */
+    public int getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Returns the keepalive ping interval jitter.
+     * @return jitter in milliseconds. Default: 0.
+     */
+    public int getPingJitter() {
+        return pingJitter;
+    }
+
+    /**
+     * Sets the number of server threads accepting connections.
+     * <br>All acceptors feed the same connection list and handler.
+     * The acceptors share the server socket or, if reusePort is true,
+     * each acceptor listens to its own socket bound to the same port
+     * with the SO_REUSEPORT option, so the system balances incoming
+     * connections among them. SO_REUSEPORT requires Java 9+ and
+     * OS support (Linux, BSD), otherwise the server socket is shared.
+     * <br>Note: SO_REUSEPORT allows other processes of the same user
+     * to listen to the port.
+     * @param num number of acceptors (min value is 1).
+     * @param reusePort true to use SO_REUSEPORT server sockets.
+     * @return this
+     * @see WsServer#getServerSocket()
+     * @since 5.1
+     */
+    public WsParameters setAcceptors(int num, boolean reusePort) {
+        acceptors = Math.max(1, num);
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    /**
+     * Returns the number of server threads accepting connections.
+     * @return number of acceptors. Default: 1.
+     */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /**
+     * Returns SO_REUSEPORT server sockets enabled.
+     * @return true if so. Default: false.
+     */
+    public boolean isReusePort() {
+        return reusePort;
+    }
+
+    /**
+     * Sets the asynchronous send queue length and the queue full behavior.
+     * @param length maximum number of queued messages per connection
+     * (min value is 1).
+     * @param onFull queue full behavior: SEND_QUEUE_FAIL, SEND_QUEUE_BLOCK
+     * or SEND_QUEUE_CLOSE.
+     * @return this
+     * @see WsConnection#sendAsync(java.io.InputStream, boolean)
+     * @since 5.1
+     */
+    public WsParameters setSendQueue(int length, int onFull) {
+        if (onFull < SEND_QUEUE_FAIL || onFull > SEND_QUEUE_CLOSE) {
+            throw new IllegalArgumentException();
+        }
+        sendQueueLength = Math.max(1, length);
+        sendQueueFull = onFull;
+        return this;
+    }
+
+    /**
+     * Returns the asynchronous send queue length.
+     * @return number of messages. Default: 16.
+     */
+    public int getSendQueueLength() {
+        return sendQueueLength;
+    }
+
+    /**
+     * Returns the asynchronous send queue full behavior.
+     * @return SEND_QUEUE_FAIL, SEND_QUEUE_BLOCK or SEND_QUEUE_CLOSE.
+     * Default: SEND_QUEUE_FAIL.
+     */
+    public int getSendQueueFull() {
+        return sendQueueFull;
+    }
+
+    /**
+     * Sets the byte budget of the buffered incoming payloads.
+     * <br>The connection over the budget stops reading the socket until
+     * the handler reads the pending messages, so TCP flow control pushes
+     * back the sender instead of closing the connection. Reading also stops
+     * when the maximum number of pending messages is reached.
+     * <br>The budget counts the received and not yet read payloads of the
+     * messages passed to the handler. The unread remainder of the message
+     * is not counted when onMessage returns. The connection can always
+     * receive at least one message, so the budget can be exceeded
+     * by the incomplete messages.
+     * <br>The server budget is shared by all the server connections,
+     * the client connection has its own one.
+     * @param total maximum buffered bytes of the server, 0 - unlimited.
+     * @param perConnection maximum buffered bytes of the connection,
+     * 0 - unlimited.
+     * @return this
+     * @see #setMaxMessages(int)
+     * @since 5.1
+     */
+    public WsParameters setInboundBudget(long total, long perConnection) {
+        inboundBudget = Math.max(0L, total);
+        connectionInboundBudget = Math.max(0L, perConnection);
+        return this;
+    }
+
+    /**
+     * Returns the byte budget of the buffered incoming payloads.
+     * @return bytes. Default: 0 (unlimited).
+     */
+    public long getInboundBudget() {
+        return inboundBudget;
+    }
+
+    /**
+     * Returns the byte budget of the buffered incoming payloads per connection.
+     * @return bytes. Default: 0 (unlimited).
+     */
+    public long getConnectionInboundBudget() {
+        return connectionInboundBudget;
+    }
+
+    /**
+     * Sets the spill of the large incoming messages to the temp files.
+     * <br>The payloads of the message beyond the threshold are appended
+     * to the memory-mapped temp file and read through the mapping,
+     * so the large messages do not occupy the heap.
+     * The spilled payloads are not counted by the inbound budget.
+     * The file is deleted when the message is read or closed.
+     * @param threshold message length in bytes or -1 to disable
+     * (min value is 125).
+     * @param dir temp files directory or null for the system default.
+     * @return this
+     * @see #setInboundBudget(long, long)
+     * @since 5.1
+     */
+    public WsParameters setSpill(int threshold, File dir) {
+        spillThreshold = threshold < 0 ? -1
+                : Math.max(threshold, 125);
+        spillDirectory = dir;
+        return this;
+    }
+
+    /**
+     * Returns the message spill threshold.
+     * @return bytes. Default: -1 (disabled).
+     */
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * Returns the spill temp files directory.
+     * @return directory. Default: null (system default).
+     */
+    public File getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Sets the coalescing of the outgoing messages.
+     * <br>The coalesced messages are collected in the output buffer,
+     * so the short messages sent in bursts are written by fewer system
+     * calls, TCP segments and TLS records. The buffer is written when full
+     * regardless of the policy. Control frames are flushed immediately.
+     * <br>The messages sent by other threads than the handler or the send
+     * queue writer are flushed by the FLUSH_BATCH policy at the end
+     * of each message.
+     * @param policy FLUSH_MESSAGE, FLUSH_BATCH or FLUSH_DELAY.
+     * @param bufferLength output buffer length in bytes (min value is 125).
+     * @param delayMicros FLUSH_DELAY deadline in microseconds.
+     * @return this
+     * @see #setSocketOptions(boolean, int, int)
+     * @since 5.1
+     */
+    public WsParameters setFlushPolicy(int policy, int bufferLength, int delayMicros) {
+        if (policy < FLUSH_MESSAGE || policy > FLUSH_DELAY) {
+            throw new IllegalArgumentException();
+        }
+        flushPolicy = policy;
+        flushBufferLength = Math.max(bufferLength, 125);
+        flushDelay = Math.max(0, delayMicros);
+        return this;
+    }
+
+    /**
+     * Returns the flush policy.
+     * @return FLUSH_MESSAGE, FLUSH_BATCH or FLUSH_DELAY.
+     * Default: FLUSH_MESSAGE.
+     */
+    public int getFlushPolicy() {
+        return flushPolicy;
+    }
+
+    /**
+     * Returns the output buffer length of the coalesced messages.
+     * @return bytes. Default: 16384.
+     */
+    public int getFlushBufferLength() {
+        return flushBufferLength;
+    }
+
+    /**
+     * Returns the FLUSH_DELAY deadline.
+     * @return microseconds. Default: 0.
+     */
+    public int getFlushDelay() {
+        return flushDelay;
+    }
+
+    /**
+     * Sets the connection socket options.
+     * <br>The server applies the receive buffer size to the server socket,
+     * so the accepted connections get it before the TCP handshake.
+     * @param tcpNoDelay TCP_NODELAY, if true the Nagle's algorithm is disabled.
+     * @param sendBufferSize SO_SNDBUF in bytes, 0 - system default.
+     * @param receiveBufferSize SO_RCVBUF in bytes, 0 - system default.
+     * @return this
+     * @since 5.1
+     */
+    public WsParameters setSocketOptions(boolean tcpNoDelay, int sendBufferSize,
+            int receiveBufferSize) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBufferSize = Math.max(0, sendBufferSize);
+        this.receiveBufferSize = Math.max(0, receiveBufferSize);
+        return this;
+    }
+
+    /**
+     * Returns TCP_NODELAY socket option.
+     * @return true if the Nagle's algorithm is disabled. Default: false.
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Returns SO_SNDBUF socket option.
+     * @return bytes. Default: 0 (system default).
+     */
+    public int getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Returns SO_RCVBUF socket option.
+     * @return bytes. Default: 0 (system default).
+     */
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
     /**
      * Sets TLS connection parameters.
      * <br>SSLParameters used by server:<br>
@@ -0,0 +1,77 @@
+/*
+ * WsPreparedMessage. MIT (c) 2026 miktim@mail.ru
+ * Message encoded once into unmasked frames for repeated sending.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Prepared WebSocket message.
+ * <p>
+ * The message is encoded once into unmasked frames. The frames are
+ * written to any number of server-side connections by a single write
+ * without re-encoding. Client connections mask the cached payload
+ * while sending it.
+ * </p>
+ *
+ * @see WsConnection#send(WsPreparedMessage)
+ * @see WsServer#broadcast(WsPreparedMessage)
+ * @since 5.1
+ */
+public final class WsPreparedMessage {
+
+    final byte[] frames; // unmasked encoded frames
+    private final boolean isText;
+
+    /**
+     * Prepares binary data or UTF-8 encoded text.
+     * <br>
+     * The message is encoded into a single frame, the array is copied.
+     *
+     * @param message array of bytes.
+     * @param isText if true, the message is UTF-8 encoded text.
+     * Otherwise - binary data.
+     */
+    public WsPreparedMessage(byte[] message, boolean isText) {
+        this(message, 0, message.length, isText, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Prepares text message.
+     * <br>
+     * The message is encoded into a single frame.
+     *
+     * @param message text message.
+     * @throws WsError on encoding error
+     */
+    public WsPreparedMessage(String message) {
+        this(utf8(message), true);
+    }
+
+    // encodes the message into the frames of the frameLength payloads
+    WsPreparedMessage(byte[] message, int off, int len, boolean isText,
+            int frameLength) {
+        this.frames = WsIo.encodeFrames(message, off, len, isText, frameLength);
+        this.isText = isText;
+    }
+
+    private static byte[] utf8(String message) {
+        try {
+            return message.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new WsError("WsPreparedMessage error", e);
+        }
+    }
+
+    /**
+     * Returns true if the message is UTF-8 encoded text, otherwise it is binary
+     * data.
+     */
+    public boolean isText() {
+        return isText;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * WsRegistry. MIT (c) 2026 miktim@mail.ru
+ * Concurrent connection registry of the WebSocket or WsServer.
+ * Add, remove and lookup by the connection id are O(1) without global lock,
+ * the iteration is weakly consistent and does not copy the registry.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class WsRegistry implements Iterable<WsConnection> {
+
+    private final ConcurrentHashMap<Long, WsConnection> connections
+            = new ConcurrentHashMap<Long, WsConnection>();
+    private final Collection<WsConnection> view
+            = Collections.unmodifiableCollection(connections.values());
+    private final AtomicInteger slots = new AtomicInteger(); // reserved by the server acceptors
+
+    void add(WsConnection conn) {
+        connections.put(conn.connectionId, conn);
+    }
+
+    boolean remove(WsConnection conn) {
+        return connections.remove(conn.connectionId, conn);
+    }
+
+    // reserves the slot of the accepted connection,
+    // the server acceptors run concurrently
+    boolean reserve(int limit) {
+        while (true) {
+            int n = slots.get();
+            if (n >= limit) {
+                return false;
+            }
+            if (slots.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void free() {
+        slots.decrementAndGet();
+    }
+
+    WsConnection get(long id) {
+        return connections.get(id);
+    }
+
+    int size() {
+        return connections.size();
+    }
+
+    WsConnection[] toArray() {
+        return connections.values().toArray(new WsConnection[0]);
+    }
+
+    // unmodifiable weakly consistent view
+    Collection<WsConnection> view() {
+        return view;
+    }
+
+    @Override
+    public Iterator<WsConnection> iterator() {
+        return view.iterator();
+    }
+
+}
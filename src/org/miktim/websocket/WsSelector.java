@@ -0,0 +1,119 @@
+/*
+ * WsSelector. Non-blocking server engine loop, MIT (c) 2026 miktim@mail.ru
+ *
+ * Serves the set of the server-side connections:
+ * registers accepted channels, reads, writes the backlogs of the
+ * channels and checks timeouts.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+class WsSelector extends Thread {
+
+    static final int SCAN_INTERVAL = 250; // millis, timeouts check interval
+    static final int READ_BUFFER_LENGTH = 65536;
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<WsChannel> pending
+            = new ConcurrentLinkedQueue<WsChannel>(); // registered or closed channels
+    private final ConcurrentLinkedQueue<WsChannel> resumed
+            = new ConcurrentLinkedQueue<WsChannel>(); // paused by the inbound budget
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_LENGTH);
+    private volatile boolean shutdown = false;
+
+    WsSelector() throws IOException {
+        selector = Selector.open();
+    }
+
+    // called by the server thread
+    void register(WsConnection conn) throws IOException {
+        conn.socket.getChannel().configureBlocking(false);
+        conn.channel = new WsChannel(conn, this);
+        conn.connections.add(conn);
+        conn.startCloseTimer(); // opening handshake deadline
+        notify(conn.channel);
+    }
+
+    // new or closed channel
+    void notify(WsChannel ch) {
+        pending.add(ch);
+        selector.wakeup();
+    }
+
+    // the paused channel can read (see WsBudget)
+    void resume(WsChannel ch) {
+        resumed.add(ch);
+        selector.wakeup();
+    }
+
+    // stop the loop after all connections are closed
+    void shutdown() {
+        shutdown = true;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        setName("WsSelector" + getName());
+        long lastScan = System.currentTimeMillis();
+        while (!(shutdown && selector.keys().isEmpty() && pending.isEmpty())) {
+            try {
+                selector.select(SCAN_INTERVAL);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+            WsChannel ch;
+            while ((ch = pending.poll()) != null) {
+                if (ch.key == null && ch.channel.isOpen()) {
+                    try {
+                        ch.key = ch.channel.register(selector, SelectionKey.OP_READ, ch);
+                        continue;
+                    } catch (IOException e) {
+                        ch.error(e);
+                    }
+                }
+                ch.finish();
+            }
+            while ((ch = resumed.poll()) != null) {
+                ch.resumed();
+            }
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                ch = (WsChannel) key.attachment();
+                if (key.isValid() && key.isWritable()) {
+                    ch.writable();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    ch.read(readBuffer);
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastScan >= SCAN_INTERVAL) {
+                lastScan = now;
+                for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+                    ((WsChannel) key.attachment()).checkTimeout(now);
+                }
+            }
+        }
+// force closing of the remaining connections
+        for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+            ((WsChannel) key.attachment()).finish();
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+}
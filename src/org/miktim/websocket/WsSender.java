@@ -0,0 +1,222 @@
+/*
+ * WsSender. MIT (c) 2026 miktim@mail.ru
+ * Bounded outbound message queue of the connection.
+ * The queue is drained by the executor (see WsParameters.setExecutor),
+ * by the virtual writer thread (see WsParameters.setVirtualThreads)
+ * or by the shared pool of the writer threads. A slow peer holds
+ * a pool thread while its messages are written.
+ * See WsConnection.sendAsync, WsParameters.setSendQueue
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+import java.nio.CharBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class WsSender implements Runnable {
+
+    private static ExecutorService writers = null; // shared writer threads
+
+    private final WsConnection conn;
+    private final ArrayDeque<FutureTask<Void>> queue
+            = new ArrayDeque<FutureTask<Void>>();
+    private final ReentrantLock lock = new ReentrantLock(); // no virtual thread pinning
+    private final Condition changed = lock.newCondition(); // queue changed or stopped
+    private Executor executor = null;
+    private boolean running = false; // writer is running or scheduled
+    private boolean stopped = false;
+    private volatile Thread writer = null; // the thread running the writer
+
+    WsSender(WsConnection conn) {
+        this.conn = conn;
+    }
+
+    Future<Void> send(final InputStream is, final boolean isText) {
+        return send(new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                conn.syncSend(is, isText);
+                return null;
+            }
+        }));
+    }
+
+    // the array must not be modified until the message is sent
+    Future<Void> send(final byte[] message, final int off, final int len,
+            final boolean isText) {
+        return send(new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                conn.syncSend(message, off, len, isText);
+                return null;
+            }
+        }));
+    }
+
+    // the text must not be modified until the message is sent
+    Future<Void> send(final CharBuffer text) {
+        return send(new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                conn.syncSend(text);
+                return null;
+            }
+        }));
+    }
+
+    private Future<Void> send(FutureTask<Void> task) {
+        IOException overflow = null;
+        lock.lock();
+        try {
+            while (true) {
+                if (stopped || !conn.isOpen()) {
+                    return failed(new SocketException("WebSocket closed"));
+                }
+                if (queue.size() < conn.wsp.sendQueueLength) {
+                    break;
+                }
+                if (conn.wsp.sendQueueFull != WsParameters.SEND_QUEUE_BLOCK) {
+                    overflow = new IOException("Send queue full");
+                    break;
+                }
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return failed(e);
+                }
+            }
+            if (overflow == null) {
+                queue.add(task);
+                if (running) {
+                    changed.signalAll(); // wake up the writer thread
+                    return task;
+                }
+                running = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (overflow != null) {
+            if (conn.wsp.sendQueueFull == WsParameters.SEND_QUEUE_CLOSE) {
+                conn.closeDueTo(WsStatus.POLICY_VIOLATION, overflow.getMessage(), overflow);
+            }
+            return failed(overflow);
+        }
+        startWriter();
+        return task;
+    }
+
+    private FutureTask<Void> failed(final Exception e) {
+        FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                throw e;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    synchronized static Executor writers() {
+        if (writers == null) {
+            writers = WsThreads.newPool("WsSender");
+        }
+        return writers;
+    }
+
+    private void startWriter() {
+        executor = conn.wsp.executor;
+        if (executor != null) {
+            try {
+                executor.execute(this);
+                return;
+            } catch (RejectedExecutionException e) { // executor shutdown
+                executor = null;
+            }
+        }
+        if (conn.wsp.virtualThreads
+                && WsThreads.startVirtual(this, "WsSender" + conn.getName()) != null) {
+            return;
+        }
+        executor = writers();
+        executor.execute(this);
+    }
+
+    boolean isWriter(Thread thread) {
+        return thread == writer;
+    }
+
+    // the connection is released, stop the writer thread
+    void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        writer = Thread.currentThread();
+        for (int i = 0;; i++) {
+            FutureTask<Void> task;
+            lock.lock();
+            try {
+                while (queue.isEmpty()) {
+// the executor task completes, the writer thread waits until stopped
+                    if (executor != null || stopped) {
+                        running = false;
+                        writer = null;
+                        return;
+                    }
+                    try {
+                        changed.await();
+                    } catch (InterruptedException e) {
+                        running = false;
+                        writer = null;
+                        return;
+                    }
+                }
+                if (executor != null && i == WsDispatcher.MAX_BATCH) {
+                    writer = null;
+                    break; // let other connections go
+                }
+                task = queue.poll();
+                changed.signalAll(); // wake up blocked producers
+            } finally {
+                lock.unlock();
+            }
+            task.run();
+            lock.lock();
+            try {
+                if (!queue.isEmpty()) {
+                    continue;
+                }
+            } finally {
+                lock.unlock();
+            }
+            conn.flusher.flushPending(); // the queue is drained
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) { // executor shutdown
+            run();
+        }
+    }
+
+}
@@ -1,18 +1,23 @@
 /*
  * WsServer. WebSocket Server, MIT (c) 2020-2026 miktim@mail.ru
  *
- * Accepts sockets, creates and starts connection threads.
+ * Accepts sockets by one or more acceptor threads, creates and starts
+ * connection threads or passes connections to the selector loops.
  *
  * Created: 2020-03-09
  */
 package org.miktim.websocket;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * WebSocket server for insecure or TLS connections.
@@ -25,16 +30,21 @@ public class WsServer extends Thread {
     private final boolean isSecure;
     private final WsParameters wsp;
     private final ServerSocket serverSocket;
+    private final ServerSocket[] serverSockets; // SO_REUSEPORT shards
     private final WsConnection.Handler connectionHandler; // connection handler
     List<WsServer> servers = null; // WebSocket servers list
-    private final List<WsConnection> connections
-            = Collections.synchronizedList(new ArrayList<WsConnection>());
+    private final WsRegistry connections = new WsRegistry();
+    private WsSelector[] selectors = null; // non-blocking engine loops
+    private Thread[] acceptors = new Thread[0]; // additional accepting threads
+    private final WsBudget budget; // shared inbound budget or null
 
-    WsServer(ServerSocket ss, WsConnection.Handler h, boolean secure, WsParameters wsp) {
-        this.serverSocket = ss;
+    WsServer(ServerSocket[] ss, WsConnection.Handler h, boolean secure, WsParameters wsp) {
+        this.serverSocket = ss[0];
+        this.serverSockets = ss;
         this.connectionHandler = h;
         this.isSecure = secure;
         this.wsp = wsp;
+        this.budget = WsBudget.create(wsp);
     }
 
     /**
@@ -105,12 +115,163 @@ public class WsServer extends Thread {
     }
 
     /**
-     * Lists serve-side connections.
+     * Lists server-side connections.
      *
      * @return array of server-side connections.
      */
     public WsConnection[] listConnections() {
-        return connections.toArray(new WsConnection[0]);
+        return connections.toArray();
+    }
+
+    /**
+     * Returns server-side connections view.
+     * <br>The view is unmodifiable and weakly consistent: the iteration
+     * does not copy the connections, does not block the registry
+     * and may not reflect changes made after the iteration started.
+     *
+     * @return server-side connections.
+     * @since 5.1
+     */
+    public Collection<WsConnection> getConnections() {
+        return connections.view();
+    }
+
+    /**
+     * Returns server-side connection by id.
+     *
+     * @param id connection id.
+     * @return connection or null if no such connection.
+     * @see WsConnection#getConnectionId()
+     * @since 5.1
+     */
+    public WsConnection getConnection(long id) {
+        return connections.get(id);
+    }
+
+    /**
+     * Connection filter of the broadcast.
+     *
+     * @since 5.1
+     */
+    public interface Filter {
+
+        /**
+         * Tests the connection.
+         *
+         * @param conn open server-side connection.
+         * @return true, if the message should be sent to the connection.
+         */
+        public boolean accept(WsConnection conn);
+    }
+
+    /**
+     * Sends binary message to all open server-side connections.
+     * <p>
+     * The message frames are built once and the same bytes are
+     * written to each connection in turn by the calling thread.
+     * The write to a slow peer blocks the broadcast loop, so all
+     * the following connections wait for it. A connection with
+     * the send error is closed with the 1006 (ABNORMAL_CLOSURE) status code.
+     * </p>
+     *
+     * @param message array of bytes.
+     * @return number of connections the message was sent to.
+     * @since 5.1
+     */
+    public int broadcast(byte[] message) {
+        return broadcast(message, null);
+    }
+
+    /**
+     * Sends binary message to the filtered open server-side connections.
+     * <br>
+     * See: {@link WsServer#broadcast(byte[])} for details
+     *
+     * @param message array of bytes.
+     * @param filter connection filter or null.
+     * @return number of connections the message was sent to.
+     * @since 5.1
+     */
+    public int broadcast(byte[] message, Filter filter) {
+        return broadcast(new WsPreparedMessage(message, 0, message.length, false,
+                wsp.payloadBufferLength), filter);
+    }
+
+    /**
+     * Sends text message to all open server-side connections.
+     * <br>
+     * See: {@link WsServer#broadcast(byte[])} for details
+     *
+     * @param message text message.
+     * @return number of connections the message was sent to.
+     * @since 5.1
+     */
+    public int broadcast(String message) {
+        return broadcast(message, null);
+    }
+
+    /**
+     * Sends text message to the filtered open server-side connections.
+     * <br>
+     * See: {@link WsServer#broadcast(byte[])} for details
+     *
+     * @param message text message.
+     * @param filter connection filter or null.
+     * @return number of connections the message was sent to.
+     * @throws WsError on encoding error
+     * @since 5.1
+     */
+    public int broadcast(String message, Filter filter) {
+        try {
+            byte[] bytes = message.getBytes("UTF-8");
+            return broadcast(new WsPreparedMessage(bytes, 0, bytes.length, true,
+                    wsp.payloadBufferLength), filter);
+        } catch (UnsupportedEncodingException e) {
+            throw new WsError("broadcast(String) error", e);
+        }
+    }
+
+    /**
+     * Sends the prepared message to all open server-side connections.
+     * <br>
+     * The message is not encoded again, see: {@link WsServer#broadcast(byte[])}
+     *
+     * @param message prepared message.
+     * @return number of connections the message was sent to.
+     * @since 5.1
+     */
+    public int broadcast(WsPreparedMessage message) {
+        return broadcast(message, null);
+    }
+
+    /**
+     * Sends the prepared message to the filtered open server-side connections.
+     * <br>
+     * See: {@link WsServer#broadcast(byte[])} for details
+     *
+     * @param message prepared message.
+     * @param filter connection filter or null.
+     * @return number of connections the message was sent to.
+     * @since 5.1
+     */
+    public int broadcast(WsPreparedMessage message, Filter filter) {
+        return sendFrames(message.frames, filter);
+    }
+
+    // writes encoded message frames to the filtered connections
+    int sendFrames(byte[] frames, Filter filter) {
+        int sent = 0;
+        for (WsConnection conn : connections) {
+            try {
+                if (conn.isOpen() && (filter == null || filter.accept(conn))) {
+                    conn.sendFrames(frames, 0, frames.length);
+                    sent++;
+                }
+            } catch (IOException e) {
+                conn.closeDueTo(WsStatus.ABNORMAL_CLOSURE, e.getMessage(), e);
+            }
+        }
+        return sent;
     }
 
     /**
@@ -149,16 +310,18 @@ public class WsServer extends Thread {
             serverStatus = code;
             closeServerSocket();
 // close associated connections
-            for (WsConnection conn : listConnections()) {
+            for (WsConnection conn : connections) {
                 conn.ready().close(code, reason);
             }
 //        }
     }
 
     void closeServerSocket() {
-        try {
-            serverSocket.close();
-        } catch (IOException ignore) {
+        for (ServerSocket ss : serverSockets) {
+            try {
+                ss.close();
+            } catch (IOException ignore) {
+            }
         }
     }
 
@@ -173,40 +336,26 @@ public class WsServer extends Thread {
         setName("WsServer" + getName());
         serverStatus = WsStatus.IS_OPEN;
         try {
+            startSelectors();
             synchronized (this) {
                 if (connectionHandler instanceof ServerHandler) {
                     ((ServerHandler) connectionHandler).onStart(this, wsp);
                 }
                 this.notifyAll();
             }
-            while (true) {//
-// serverSocket SO_TIMEOUT = 0 by WebSocket creator
-                Socket socket = serverSocket.accept();
-                if (wsp.backlog > -1 && connections.size() >= wsp.backlog) {
-                    try {
-                        (new HttpHead())
-                                .setStartLine("HTTP/1.1 429 Too Many Requests")
-                                .set("Retry-After", "10")
-                                .write(socket.getOutputStream());
-                        socket.close();
-                    } catch (IOException ignore) {
-                    }
-                    continue;
-                }
-                socket.setSoTimeout(wsp.handshakeSoTimeout);
-                WsConnection conn
-                        = new WsConnection(socket, connectionHandler, wsp, isSecure);
-// set a link to the server's connection list
-                conn.connections = this.connections;
-                conn.start(); // start connection Thread
-            }
+            startAcceptors();
+            accept(serverSocket);
         } catch (Throwable err) {
-            if (serverStatus == WsStatus.IS_OPEN) {
-                serverError = err;
-                stopServer(WsStatus.INTERNAL_ERROR, "Abnormal shutdown");
-            }
+            acceptError(err);
         }
         closeServerSocket();
+        for (Thread acceptor : acceptors) {
+            try {
+                acceptor.join();
+            } catch (InterruptedException ignore) {
+            }
+        }
+        stopSelectors();
         servers.remove(this);
         try {
             if (connectionHandler instanceof ServerHandler) {
@@ -219,6 +368,147 @@ public class WsServer extends Thread {
 
     }
 
+    private final AtomicInteger accepted = new AtomicInteger(); // accepted connections counter
+
+    // accepting loop, see startAcceptors
+    void accept(ServerSocket ss) throws IOException {
+        while (true) {//
+// serverSocket SO_TIMEOUT = 0 by WebSocket creator
+            Socket socket = ss.accept();
+            if (!connections.reserve(
+                    wsp.backlog > -1 ? wsp.backlog : Integer.MAX_VALUE)) {
+                reject(socket);
+                continue;
+            }
+            boolean started = false;
+            try {
+                socket.setSoTimeout(wsp.handshakeSoTimeout);
+                WsIo.setSocketOptions(socket, wsp);
+                WsConnection conn
+                        = new WsConnection(socket, connectionHandler, wsp, isSecure);
+// set a link to the server's connection list
+                conn.connections = this.connections;
+                if (budget != null) {
+                    conn.inbound = budget.open(conn);
+                }
+                if (selectors != null) {
+                    selectors[(accepted.getAndIncrement() & Integer.MAX_VALUE)
+                            % selectors.length].register(conn);
+                } else {
+                    conn.start(); // start connection Thread
+                }
+                started = true; // the slot is freed by WsConnection.release
+            } finally {
+                if (!started) {
+                    connections.free();
+                }
+            }
+        }
+    }
+
+    static final int REJECT_SO_TIMEOUT = 1000; // millis
+
+    // replies 429 to the connection over the limit.
+    // The acceptor must not block: the TLS handshake or the write
+    // may wait for the peer
+    void reject(final Socket socket) {
+        WsConnection.closers().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.setSoTimeout(REJECT_SO_TIMEOUT);
+                    (new HttpHead())
+                            .setStartLine("HTTP/1.1 429 Too Many Requests")
+                            .set("Retry-After", "10")
+                            .write(socket.getOutputStream());
+                } catch (IOException ignore) {
+                }
+                try {
+                    socket.close();
+                } catch (IOException ignore) {
+                }
+            }
+        });
+    }
+
+    void acceptError(Throwable err) {
+        synchronized (this) {
+            if (serverStatus != WsStatus.IS_OPEN) {
+                return;
+            }
+            serverError = err;
+        }
+        stopServer(WsStatus.INTERNAL_ERROR, "Abnormal shutdown");
+    }
+
+    // additional acceptors listen to the shared socket or to the shards
+    void startAcceptors() {
+        acceptors = new Thread[wsp.acceptors - 1];
+        for (int i = 0; i < acceptors.length; i++) {
+            final ServerSocket ss = serverSockets[(i + 1) % serverSockets.length];
+            acceptors[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        accept(ss);
+                    } catch (Throwable err) {
+                        acceptError(err);
+                    }
+                }
+            });
+            acceptors[i].setName("WsAcceptor" + acceptors[i].getName());
+            acceptors[i].start();
+        }
+    }
+
+    // sets SO_REUSEPORT option (Java 9+) of the unbound server socket
+    static boolean setReusePort(ServerSocket ss) {
+        try {
+            Object option = Class.forName("java.net.StandardSocketOptions")
+                    .getField("SO_REUSEPORT").get(null);
+            Class<?> optionClass = Class.forName("java.net.SocketOption");
+            Object target = ss.getChannel();
+            Class<?> targetClass = ServerSocketChannel.class;
+            if (target == null) {
+                target = ss;
+                targetClass = ServerSocket.class;
+            }
+            Method supported = targetClass.getMethod("supportedOptions");
+            if (!((Set<?>) supported.invoke(target)).contains(option)) {
+                return false;
+            }
+            targetClass.getMethod("setOption", optionClass, Object.class)
+                    .invoke(target, option, Boolean.TRUE);
+            return true;
+        } catch (Throwable e) { // Java 8-
+            return false;
+        }
+    }
+
+    // the non-blocking engine for channel server socket
+    void startSelectors() throws IOException {
+        if (serverSocket.getChannel() == null) {
+            return;
+        }
+        int num = wsp.selectors > 0 ? wsp.selectors
+                : Runtime.getRuntime().availableProcessors();
+        selectors = new WsSelector[num];
+        for (int i = 0; i < num; i++) {
+            selectors[i] = new WsSelector();
+            selectors[i].start();
+        }
+    }
+
+    void stopSelectors() {
+        if (selectors != null) {
+            for (WsSelector selector : selectors) {
+                if (selector != null) {
+                    selector.shutdown();
+                }
+            }
+        }
+    }
+
     /**
      * WebSocket server event handler.
      */
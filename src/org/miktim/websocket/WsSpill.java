@@ -0,0 +1,76 @@
+/*
+ * WsSpill. MIT (c) 2026 miktim@mail.ru
+ * Memory-mapped temp file of the large incoming message.
+ * The payload chunks are copied to the mapped file segments
+ * and queued as the segment slices. See WsParameters.setSpill
+ *
+ * The mapping is released by the garbage collector. The file is unlinked
+ * when opened, if the platform does not allow deletion of the open file
+ * it is deleted when closed (or on exit if it is still mapped).
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+
+class WsSpill {
+
+    static final int SEGMENT_LENGTH = 1 << 22; // 4 MiB mapped file region
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private MappedByteBuffer segment = null;
+    private long fileLength = 0;
+    private boolean deleted;
+
+    WsSpill(File dir) throws IOException {
+        file = File.createTempFile("WsMessage", ".spill", dir);
+        try {
+            raf = new RandomAccessFile(file, "rw");
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        channel = raf.getChannel();
+        deleted = file.delete(); // POSIX
+    }
+
+    // appends the bytes, adds the slices of the mapped file to the queue
+    void append(byte[] buf, int off, int len, Collection<ByteBuffer> queue)
+            throws IOException {
+        while (len > 0) {
+            if (segment == null || !segment.hasRemaining()) {
+                segment = channel.map(FileChannel.MapMode.READ_WRITE,
+                        fileLength, SEGMENT_LENGTH);
+                fileLength += SEGMENT_LENGTH;
+            }
+            int n = Math.min(len, segment.remaining());
+            ByteBuffer slice = segment.duplicate();
+            slice.limit(slice.position() + n);
+            segment.put(buf, off, n);
+            queue.add(slice);
+            off += n;
+            len -= n;
+        }
+    }
+
+    void close() {
+        segment = null;
+        try {
+            raf.close();
+        } catch (IOException ignore) {
+        }
+        if (!deleted && !file.delete()) {
+            file.deleteOnExit(); // mapped
+        }
+    }
+
+}
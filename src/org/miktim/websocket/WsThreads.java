@@ -0,0 +1,74 @@
+/*
+ * WsThreads. Virtual threads starter, MIT (c) 2026 miktim@mail.ru
+ *
+ * Java 21+ virtual threads are accessed via reflection
+ * to stay Java SE 6/Android compatible.
+ * The shared pools serve the connections without the executor
+ * (see WsParameters.setExecutor).
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+class WsThreads {
+
+    static final int POOL_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    static final long POOL_KEEP_ALIVE = 60L; // seconds, idle thread lifetime
+
+    private static Method ofVirtual = null; // Thread.ofVirtual()
+    private static Method name = null; // Thread.Builder.name(String)
+    private static Method start = null; // Thread.Builder.start(Runnable)
+
+    static {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class);
+            start = builder.getMethod("start", Runnable.class);
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+        } catch (Throwable ignore) { // Java 20-
+        }
+    }
+
+    static boolean isVirtualSupported() {
+        return ofVirtual != null;
+    }
+
+// Starts the runnable on a new virtual thread.
+// Returns the virtual thread or null if virtual threads are not supported.
+    static Thread startVirtual(Runnable r, String threadName) {
+        if (ofVirtual == null) {
+            return null;
+        }
+        try {
+            Object builder = name.invoke(ofVirtual.invoke(null), threadName);
+            return (Thread) start.invoke(builder, r);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+// Returns the fixed size pool of the daemon threads with the unbounded queue.
+// The idle threads are terminated.
+    static ExecutorService newPool(final String poolName) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(POOL_THREADS, POOL_THREADS,
+                POOL_KEEP_ALIVE, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r);
+                t.setName(poolName + t.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+}
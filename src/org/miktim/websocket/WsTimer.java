@@ -0,0 +1,148 @@
+/*
+ * WsTimer. Shared hashed wheel timer, MIT (c) 2026 miktim@mail.ru
+ *
+ * A single daemon thread serves the timeouts of all connections.
+ * Scheduling and cancellation are O(1). Tasks are executed by the timer
+ * thread, so they must be short and must not block.
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+class WsTimer extends Thread {
+
+    static final int TICK = 10; // millis, timer resolution
+    static final int WHEEL_LENGTH = 512; // buckets, power of 2
+
+    private final Task[] wheel = new Task[WHEEL_LENGTH]; // bucket lists
+    private long ticks = 0; // ticks passed
+    private long startTime = 0;
+    private int tasks = 0; // scheduled tasks counter
+
+    WsTimer() {
+        setDaemon(true);
+        setName("WsTimer" + getName());
+    }
+
+    /**
+     * Timer task. The task can be scheduled once.
+     */
+    abstract static class Task implements Runnable {
+
+        private volatile WsTimer timer = null;
+        private int bucket;
+        private long rounds; // remaining wheel rounds
+        private Task prev = null;
+        private Task next = null;
+        private volatile boolean cancelled = false;
+
+        void cancel() {
+            cancelled = true;
+            if (timer != null) {
+                timer.remove(this);
+            }
+        }
+
+        boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    synchronized Task schedule(Task task, long delay) {
+        if (task.timer != null || task.cancelled) {
+            throw new IllegalStateException("Task already scheduled or cancelled");
+        }
+        if (startTime == 0) {
+            startTime = System.currentTimeMillis();
+            start();
+        }
+        long now = (System.currentTimeMillis() - startTime) / TICK;
+        if (tasks == 0) {
+            ticks = Math.max(ticks, now); // the timer is sleeping, the wheel is empty
+        }
+        long deadline = Math.max(now, ticks) + Math.max(1, (delay + TICK - 1) / TICK);
+        task.timer = this;
+        task.rounds = (deadline - ticks - 1) / WHEEL_LENGTH;
+        task.bucket = (int) (deadline & (WHEEL_LENGTH - 1));
+        task.next = wheel[task.bucket];
+        if (task.next != null) {
+            task.next.prev = task;
+        }
+        wheel[task.bucket] = task;
+        if (tasks++ == 0) {
+            notifyAll(); // wake up the sleeping timer
+        }
+        return task;
+    }
+
+    private synchronized void remove(Task task) {
+        if (task.timer != this) {
+            return; // already expired or removed
+        }
+        if (task.prev != null) {
+            task.prev.next = task.next;
+        } else {
+            wheel[task.bucket] = task.next;
+        }
+        if (task.next != null) {
+            task.next.prev = task.prev;
+        }
+        task.prev = task.next = null;
+        task.timer = null;
+        tasks--;
+    }
+
+    // remove expired tasks of the current bucket
+    private Task expired() {
+        Task expired = null;
+        int bucket = (int) (ticks & (WHEEL_LENGTH - 1));
+        for (Task task = wheel[bucket]; task != null;) {
+            Task next = task.next;
+            if (task.rounds-- <= 0) {
+                remove(task);
+                task.next = expired;
+                expired = task;
+            }
+            task = next;
+        }
+        return expired;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Task expired;
+            synchronized (this) {
+                try {
+                    while (tasks == 0) {
+                        wait();
+                    }
+                    long sleep = startTime + (ticks + 1) * TICK
+                            - System.currentTimeMillis();
+                    if (sleep > 0) {
+                        wait(sleep);
+                    }
+                } catch (InterruptedException ignore) {
+                }
+                if ((System.currentTimeMillis() - startTime) / TICK <= ticks) {
+                    continue;
+                }
+                ticks++;
+                expired = expired();
+            }
+            while (expired != null) {
+                Task task = expired;
+                expired = task.next;
+                task.next = null;
+                if (!task.cancelled) {
+                    try {
+                        task.run();
+                    } catch (Throwable e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * WsUtf8. MIT (c) 2026 miktim@mail.ru
+ * Incremental UTF-8 validator and decoder of the text message chunks.
+ * The state is kept between the chunks, so a character may be split
+ * between the payload chunks or frames.
+ * The validator rejects overlong forms, surrogates and code points
+ * above U+10FFFF at the first invalid byte (RFC 3629, RFC 6455 8.1).
+ *
+ * Created: 2026-10-17
+ */
+package org.miktim.websocket;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+
+class WsUtf8 {
+
+    static final char REPLACEMENT = '\uFFFD';
+
+    private int need = 0; // continuation bytes expected
+    private int lo = 0x80; // next continuation byte range
+    private int hi = 0xBF;
+    private int codePoint = 0;
+    private char pending = 0; // low surrogate not yet decoded
+    private boolean invalid = false;
+
+    // starts the sequence, false if the byte is not a lead byte
+    private boolean lead(int c) {
+        if (c < 0xC2 || c > 0xF4) {
+            return false;
+        }
+        if (c < 0xE0) {
+            need = 1;
+            codePoint = c & 0x1F;
+        } else if (c < 0xF0) {
+            need = 2;
+            lo = c == 0xE0 ? 0xA0 : 0x80; // overlong
+            hi = c == 0xED ? 0x9F : 0xBF; // surrogates
+            codePoint = c & 0x0F;
+        } else {
+            need = 3;
+            lo = c == 0xF0 ? 0x90 : 0x80; // overlong
+            hi = c == 0xF4 ? 0x8F : 0xBF; // above U+10FFFF
+            codePoint = c & 0x07;
+        }
+        return true;
+    }
+
+    // adds the continuation byte, false if the byte is out of range
+    private boolean next(int c) {
+        if (c < lo || c > hi) {
+            return false;
+        }
+        lo = 0x80;
+        hi = 0xBF;
+        codePoint = (codePoint << 6) | (c & 0x3F);
+        need--;
+        return true;
+    }
+
+    // validates the next bytes, false if the bytes are not UTF-8
+    boolean validate(byte[] b, int off, int len) {
+        int end = off + len;
+        int i = off;
+        while (i < end && !invalid) {
+            if (need == 0) {
+                while (i < end && b[i] >= 0) { // ASCII fast path
+                    i++;
+                }
+                if (i < end) {
+                    invalid = !lead(b[i++] & 0xFF);
+                }
+            } else {
+                invalid = !next(b[i++] & 0xFF);
+            }
+        }
+        return !invalid;
+    }
+
+    // true if the validated bytes end with the complete character
+    boolean isComplete() {
+        return need == 0 && !invalid;
+    }
+
+    // decodes the source bytes while there is room for the chars,
+    // invalid sequences are replaced by U+FFFD
+    void decode(ByteBuffer src, CharBuffer dst) {
+        byte[] b = src.array();
+        int i = src.arrayOffset() + src.position();
+        int end = src.arrayOffset() + src.limit();
+        char[] d = dst.array();
+        int j = dst.arrayOffset() + dst.position();
+        int dend = dst.arrayOffset() + dst.limit();
+        if (pending != 0 && j < dend) {
+            d[j++] = pending;
+            pending = 0;
+        }
+        while (i < end && j < dend && pending == 0) {
+            if (need == 0) {
+                int n = Math.min(end - i, dend - j);
+                for (; n > 0 && b[i] >= 0; n--) { // ASCII fast path
+                    d[j++] = (char) b[i++];
+                }
+                if (n == 0) {
+                    continue;
+                }
+                if (!lead(b[i++] & 0xFF)) {
+                    d[j++] = REPLACEMENT;
+                }
+            } else if (!next(b[i] & 0xFF)) {
+                d[j++] = REPLACEMENT; // the byte is decoded again as a lead byte
+                need = 0;
+                lo = 0x80;
+                hi = 0xBF;
+            } else {
+                i++;
+                if (need > 0) {
+                    continue;
+                }
+                if (codePoint < 0x10000) {
+                    d[j++] = (char) codePoint;
+                } else { // surrogate pair
+                    d[j++] = (char) ((codePoint >>> 10) + (0xD800 - (0x10000 >>> 10)));
+                    char low = (char) ((codePoint & 0x3FF) + 0xDC00);
+                    if (j < dend) {
+                        d[j++] = low;
+                    } else {
+                        pending = low;
+                    }
+                }
+            }
+        }
+        src.position(i - src.arrayOffset());
+        dst.position(j - dst.arrayOffset());
+    }
+
+    // completes decoding at the end of input,
+    // true if the last character is incomplete (to be replaced)
+    boolean finish() {
+        boolean incomplete = need > 0;
+        need = 0;
+        lo = 0x80;
+        hi = 0xBF;
+        return incomplete;
+    }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * WsMaskBenchmark. MIT (c) 2026 miktim@mail.ru
+ * Masking throughput: the masking loop alone (byte by byte and
+ * the library routine) and the client masking and the server unmasking
+ * 1 MiB binary messages over the loopback.
+ * Created: 2026-10-17
+ */
+
+import static java.lang.String.format;
+import java.lang.reflect.Method;
+import org.miktim.websocket.WebSocket;
+import org.miktim.websocket.WsConnection;
+import org.miktim.websocket.WsMessage;
+import org.miktim.websocket.WsParameters;
+import org.miktim.websocket.WsServer;
+import org.miktim.websocket.WsStatus;
+
+public class WsMaskBenchmark {
+
+    static final int PORT = 8080;
+    static final int MESSAGE_LENGTH = 1 << 20; // 1 MiB
+    static final int MESSAGES = 1000;
+    static final int ROUNDS = 5;
+
+    static int received = 0;
+
+    static void ws_log(Object msg) {
+        System.out.println(msg);
+    }
+
+    // masks the buffer byte by byte
+    static void maskBytes(byte[] mask, byte[] buf) {
+        for (int i = 0; i < buf.length; i++) {
+            buf[i] ^= mask[i & 3];
+        }
+    }
+
+    // the masking loop alone, MiB/s
+    static double loopRate(Method umask, byte[] mask, byte[] buf) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++) {
+            if (umask == null) {
+                maskBytes(mask, buf);
+            } else {
+                umask.invoke(null, mask, 0L, buf, 0, buf.length);
+            }
+        }
+        return MESSAGES / ((System.nanoTime() - start) / 1e9);
+    }
+
+    public static void main(String[] args) throws Exception {
+// package-private WsIo.umaskPayload(mask, maskOff, payload, off, len)
+        Method umask = Class.forName("org.miktim.websocket.WsIo")
+                .getDeclaredMethod("umaskPayload", byte[].class, long.class,
+                        byte[].class, int.class, int.class);
+        umask.setAccessible(true);
+        byte[] mask = {(byte) 0x12, (byte) 0x34, (byte) 0x56, (byte) 0x78};
+        byte[] buf = new byte[MESSAGE_LENGTH];
+        ws_log(format("Masking loop: %d x %d bytes, %d rounds",
+                MESSAGES, MESSAGE_LENGTH, ROUNDS));
+        for (int r = 1; r <= ROUNDS; r++) {
+            ws_log(format("Round %d: bytes %.0f MiB/s, umaskPayload %.0f MiB/s",
+                    r, loopRate(null, mask, buf), loopRate(umask, mask, buf)));
+        }
+
+        WsConnection.Handler handler = new WsConnection.Handler() {
+            @Override
+            public void onOpen(WsConnection conn, String subp) {
+            }
+
+            @Override
+            public void onMessage(WsConnection conn, WsMessage msg) {
+                try {
+                    msg.skip(Long.MAX_VALUE); // unmasked by the server
+                } catch (Exception e) {
+                    ws_log(e);
+                }
+                synchronized (WsMaskBenchmark.class) {
+                    received++;
+                    WsMaskBenchmark.class.notifyAll();
+                }
+            }
+
+            @Override
+            public void onError(WsConnection conn, Throwable e) {
+                ws_log(e);
+            }
+
+            @Override
+            public void onClose(WsConnection conn, WsStatus status) {
+            }
+        };
+
+        WsParameters wsp = new WsParameters()
+                .setPayloadBufferLength(MESSAGE_LENGTH)
+                .setMaxMessageLength(MESSAGE_LENGTH)
+                .setMaxMessages(MESSAGES);
+        WebSocket webSocket = new WebSocket();
+        WsServer server = webSocket.startServer(PORT, handler, wsp).ready();
+        WsConnection conn = webSocket
+                .connect("ws://localhost:" + PORT, handler, wsp).ready();
+
+        byte[] message = new byte[MESSAGE_LENGTH];
+        ws_log(format("Mask benchmark: %d x %d bytes, %d rounds",
+                MESSAGES, MESSAGE_LENGTH, ROUNDS));
+        for (int r = 1; r <= ROUNDS; r++) {
+            synchronized (WsMaskBenchmark.class) {
+                received = 0;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < MESSAGES; i++) {
+                conn.send(message); // masked by the client
+            }
+            synchronized (WsMaskBenchmark.class) {
+                while (received < MESSAGES && conn.isOpen()) {
+                    WsMaskBenchmark.class.wait(100);
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            ws_log(format("Round %d: %.0f MiB/s", r, MESSAGES / seconds));
+        }
+        webSocket.closeAll("Completed");
+        server.join();
+    }
+
+}
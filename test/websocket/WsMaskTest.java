@@ -0,0 +1,108 @@
+/*
+ * WsMaskTest. MIT (c) 2026 miktim@mail.ru
+ * Masking correctness: the word and unrolled loops and the library
+ * routine against the byte by byte masking at unaligned offsets.
+ * Created: 2026-10-17
+ */
+
+import static java.lang.String.format;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+public class WsMaskTest {
+
+    static final int MAX_TAIL = 17; // lengths 0..17 and the threshold + 0..17
+    static final int MAX_OFFSET = 8;
+
+    static void log(Object obj) {
+        System.out.println(String.valueOf(obj));
+    }
+
+    static void logTest(int testId, String obj, boolean result) {
+        log(format("[%d] %s %s", testId, obj, result ? "Ok" : "Failed!"));
+    }
+
+    static Method method(Class<?> io, String name, Class<?>... types) throws Exception {
+        Method m = io.getDeclaredMethod(name, types);
+        m.setAccessible(true);
+        return m;
+    }
+
+    // masks byte by byte, maskOff - offset of the part in the frame payload
+    static void maskBytes(byte[] mask, int maskOff, byte[] src, int srcOff,
+            byte[] dst, int dstOff, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[dstOff + i] = (byte) (src[srcOff + i] ^ mask[(maskOff + i) & 3]);
+        }
+    }
+
+    // compares the loop (umaskWords or umaskUnrolled) or the library routine
+    // (loop == null) with the byte by byte masking, returns the number of errors
+    static int check(Method loop, Method umask, int[] lengths, boolean inPlace)
+            throws Exception {
+        Random random = new Random(1);
+        byte[] mask = new byte[4];
+        int errors = 0;
+        for (int len : lengths) {
+            for (int m = 0; m < 4; m++) {
+                for (int srcOff = 0; srcOff < MAX_OFFSET; srcOff++) {
+                    for (int dstOff = 0; dstOff < MAX_OFFSET; dstOff++) {
+                        if (inPlace && dstOff != srcOff) {
+                            continue;
+                        }
+                        random.nextBytes(mask);
+                        byte[] src = new byte[len + 2 * MAX_OFFSET];
+                        random.nextBytes(src);
+                        byte[] expected = inPlace ? src.clone() : new byte[src.length];
+                        byte[] dst = inPlace ? src : expected.clone();
+                        int done;
+                        if (loop == null) {
+                            umask.invoke(null, mask, (long) m, src, srcOff, dst, dstOff, len);
+                            done = len;
+                        } else {
+                            done = (Integer) loop.invoke(null, mask, m, src, srcOff,
+                                    dst, dstOff, len);
+                        }
+                        byte[] source = inPlace ? expected.clone() : src;
+                        maskBytes(mask, m, source, srcOff, expected, dstOff, done);
+                        if (!Arrays.equals(dst, expected) || done > len) {
+                            errors++;
+                        }
+                    }
+                }
+            }
+        }
+        return errors;
+    }
+
+    public static void main(String[] args) throws Exception {
+        log("\r\nWsMaskTest");
+        Class<?> io = Class.forName("org.miktim.websocket.WsIo");
+        Method umask = method(io, "umaskPayload", byte[].class, long.class,
+                byte[].class, int.class, byte[].class, int.class, int.class);
+        Method words = method(io, "umaskWords", byte[].class, int.class,
+                byte[].class, int.class, byte[].class, int.class, int.class);
+        Method unrolled = method(io, "umaskUnrolled", byte[].class, int.class,
+                byte[].class, int.class, byte[].class, int.class, int.class);
+        Field field = io.getDeclaredField("MASK_WORD_THRESHOLD");
+        field.setAccessible(true);
+        int threshold = field.getInt(null);
+        int[] lengths = new int[2 * (MAX_TAIL + 1)];
+        for (int i = 0; i <= MAX_TAIL; i++) {
+            lengths[i] = i;
+            lengths[MAX_TAIL + 1 + i] = threshold + i;
+        }
+        log(format("Lengths 0..%d and %d..%d, mask and array offsets 0..%d",
+                MAX_TAIL, threshold, threshold + MAX_TAIL, MAX_OFFSET - 1));
+
+        logTest(1, "umaskWords", check(words, null, lengths, false) == 0);
+        logTest(1, "umaskWords in place", check(words, null, lengths, true) == 0);
+        logTest(2, "umaskUnrolled", check(unrolled, null, lengths, false) == 0);
+        logTest(2, "umaskUnrolled in place", check(unrolled, null, lengths, true) == 0);
+        logTest(3, "umaskPayload", check(null, umask, lengths, false) == 0);
+        logTest(3, "umaskPayload in place", check(null, umask, lengths, true) == 0);
+        log("\r\nCompleted");
+    }
+}
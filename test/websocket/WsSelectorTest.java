@@ -0,0 +1,561 @@
+/*
+ * WsSelectorTest. MIT (c) 2026 miktim@mail.ru
+ * Non-blocking server engine test: echo, fragmented messages,
+ * ping timeout, invalid UTF-8, inbound budget, spilled messages,
+ * batch and delay flush policies, handler dispatch modes,
+ * keepalive RTT, broadcast and prepared messages, connection registry,
+ * message read paths, buffer, slice, CharSequence and file sends, closing.
+ * Run with -Dselectors=0 to test the thread per connection engine.
+ * Created: 2026-10-17
+ */
+
+import static java.lang.String.format;
+import static java.lang.Thread.sleep;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.miktim.websocket.WebSocket;
+import org.miktim.websocket.WsConnection;
+import org.miktim.websocket.WsMessage;
+import org.miktim.websocket.WsParameters;
+import org.miktim.websocket.WsPreparedMessage;
+import org.miktim.websocket.WsServer;
+import org.miktim.websocket.WsStatus;
+
+public class WsSelectorTest {
+
+    static final int PORT = 8080;
+    static final int CONNECTIONS = 200;
+    static final int MESSAGES = 10; // per connection
+    static final int DELAY = 500;
+    static final int BIG_LENGTH = 0x40000; // 4 payload chunks
+    static String uri = "ws://localhost:" + PORT + "/selector";
+    static String testText = "";
+    static byte[] testBytes;
+    static volatile int echoed = 0;
+    static volatile int received = 0;
+    static volatile int errors = 0;
+    static volatile int serverClosed = 0;
+    static volatile int roundTrips = 0;
+    static volatile int roundTripErrors = 0;
+
+    static void log(Object obj) {
+        System.out.println(String.valueOf(obj));
+    }
+
+    static void logTest(int testId, String obj, boolean result) {
+        log(format("[%d] %s %s", testId, obj, result ? "Ok" : "Failed!"));
+    }
+
+    static final int READ_DEFAULT = 0; // asString, asByteArray
+    static final int READ_BUFFERS = 1; // asCharSequence, asByteBuffer
+    static final int READ_STREAMS = 2; // asReader, transferTo
+
+    static final int SEND_DEFAULT = 0; // send(String), send(byte[])
+    static final int SEND_BUFFERS = 1; // send(CharSequence), send(ByteBuffer)
+    static final int SEND_SLICES = 2; // send(byte[], off, len, isText)
+    static final int SEND_FILE = 3; // binary: send(FileChannel, pos, len), echoed by the file
+    static final int FILE_POS = 3; // position of the binary message in the file
+    static FileChannel sendFile;
+
+    // sends the message by the send path
+    static void send(WsConnection conn, String text, byte[] bytes, int sendMode)
+            throws IOException {
+        if (sendMode == SEND_BUFFERS) {
+            if (text != null) {
+                conn.send(new StringBuilder(text));
+            } else {
+                ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length + 6);
+                buf.position(3);
+                buf.put(bytes).limit(buf.position()).position(3);
+                conn.send(buf);
+            }
+        } else if (sendMode == SEND_SLICES) {
+            byte[] message = text != null ? text.getBytes("UTF-8") : bytes;
+            byte[] slice = new byte[message.length + 6];
+            System.arraycopy(message, 0, slice, 3, message.length);
+            conn.send(slice, 3, message.length, text != null);
+        } else if (sendMode == SEND_FILE && text == null) {
+            conn.send(sendFile, FILE_POS, bytes.length);
+        } else if (text != null) {
+            conn.send(text);
+        } else {
+            conn.send(bytes);
+        }
+    }
+
+    // reads the message by the read path and compares it
+    static boolean verify(WsMessage msg, String text, byte[] bytes, int readMode)
+            throws IOException {
+        if (msg.isText()) {
+            String s;
+            if (readMode == READ_BUFFERS) {
+                s = msg.asCharSequence().toString();
+            } else if (readMode == READ_STREAMS) {
+                StringBuilder sb = new StringBuilder();
+                Reader reader = msg.asReader();
+                char[] cbuf = new char[1000];
+                int len;
+                while ((len = reader.read(cbuf)) != -1) {
+                    sb.append(cbuf, 0, len);
+                }
+                reader.close();
+                s = sb.toString();
+            } else {
+                s = msg.asString();
+            }
+            return s.equals(text);
+        }
+        byte[] b;
+        if (readMode == READ_BUFFERS) {
+            ByteBuffer buf = msg.asByteBuffer();
+            b = new byte[buf.remaining()];
+            buf.get(b);
+        } else if (readMode == READ_STREAMS) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            msg.transferTo(out);
+            b = out.toByteArray();
+        } else {
+            b = msg.asByteArray();
+        }
+        return Arrays.equals(b, bytes);
+    }
+
+    static boolean roundTrip(WebSocket webSocket, int port, WsParameters wsp,
+            String text, byte[] bytes, int messages, int slow) throws Exception {
+        return roundTrip(webSocket, port, wsp, text, bytes, messages, slow,
+                SEND_DEFAULT, READ_DEFAULT);
+    }
+
+    // echoes the messages through the server with the given parameters,
+    // slow - client handler delay, sendMode and readMode - client send
+    // and read paths, returns true if all messages are echoed
+    static boolean roundTrip(WebSocket webSocket, int port, WsParameters wsp,
+            final String text, final byte[] bytes, int messages, final int slow,
+            final int sendMode, final int readMode) throws Exception {
+        WsConnection.Handler serverHandler = new WsConnection.Handler() {
+            @Override
+            public void onOpen(WsConnection conn, String subProtocol) {
+            }
+
+            @Override
+            public void onMessage(WsConnection conn, WsMessage msg) {
+                if (msg.isText()) {
+                    conn.sendAsync(msg.asString());
+                } else if (sendMode == SEND_FILE) {
+                    if (Arrays.equals(msg.asByteArray(), bytes)) {
+                        conn.send(sendFile, FILE_POS, bytes.length);
+                    } else {
+                        roundTripErrors++;
+                    }
+                } else {
+                    conn.sendAsync(msg.asByteArray());
+                }
+            }
+
+            @Override
+            public void onError(WsConnection conn, Throwable e) {
+                roundTripErrors++;
+            }
+
+            @Override
+            public void onClose(WsConnection conn, WsStatus status) {
+            }
+        };
+        WsConnection.Handler clientHandler = new WsConnection.Handler() {
+            @Override
+            public void onOpen(WsConnection conn, String subProtocol) {
+            }
+
+            @Override
+            public void onMessage(WsConnection conn, WsMessage msg) {
+                boolean ok;
+                try {
+                    sleep(slow);
+                    ok = verify(msg, text, bytes, readMode);
+                } catch (Exception e) {
+                    ok = false;
+                }
+                if (ok) {
+                    roundTrips++;
+                } else {
+                    roundTripErrors++;
+                }
+            }
+
+            @Override
+            public void onError(WsConnection conn, Throwable e) {
+                roundTripErrors++;
+            }
+
+            @Override
+            public void onClose(WsConnection conn, WsStatus status) {
+            }
+        };
+        roundTrips = 0;
+        roundTripErrors = 0;
+        wsp.setSendQueue(messages, WsParameters.SEND_QUEUE_BLOCK); // echo all
+        WsServer server = webSocket.startServer(port, serverHandler, wsp).ready();
+        WsConnection conn = webSocket.connect("ws://localhost:" + port, clientHandler, wsp).ready();
+        for (int i = 0; i < messages; i++) {
+            if (i % 2 == 0) {
+                send(conn, text, null, sendMode);
+            } else {
+                send(conn, null, bytes, sendMode);
+            }
+        }
+        for (int i = 0; i < 40 && roundTrips + roundTripErrors < messages; i++) {
+            sleep(DELAY);
+        }
+        log(format("Round trips: %d Errors: %d", roundTrips, roundTripErrors));
+        conn.close();
+        server.stopServer();
+        return roundTrips == messages && roundTripErrors == 0;
+    }
+
+    public static void main(String[] args) throws Exception {
+        log("\r\nWsSelectorTest. " + WebSocket.VERSION);
+
+        while (testText.length() < 1000) {
+            testText += "asfh域名alfqwoлвыыдйзццущ019801[r jsdfjs annsla;d";
+        }
+        testBytes = testText.getBytes("UTF-8");
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < BIG_LENGTH) {
+            sb.append(testText);
+        }
+        String bigText = sb.toString();
+        byte[] bigBytes = new byte[BIG_LENGTH];
+        new Random(1).nextBytes(bigBytes);
+        int selectors = Integer.getInteger("selectors", 2);
+
+        WsConnection.Handler serverHandler = new WsConnection.Handler() {
+            @Override
+            public void onOpen(WsConnection conn, String subProtocol) {
+            }
+
+            @Override
+            public void onMessage(WsConnection conn, WsMessage msg) {
+// do not block the selector loop
+                if (msg.isText()) {
+                    conn.sendAsync(msg.asString());
+                } else {
+                    conn.sendAsync(msg.asByteArray());
+                }
+                synchronized (WsSelectorTest.class) {
+                    echoed++;
+                }
+            }
+
+            @Override
+            public void onError(WsConnection conn, Throwable e) {
+                synchronized (WsSelectorTest.class) {
+                    errors++;
+                }
+            }
+
+            @Override
+            public void onClose(WsConnection conn, WsStatus status) {
+                synchronized (WsSelectorTest.class) {
+                    serverClosed++;
+                }
+            }
+        };
+
+        WsConnection.Handler clientHandler = new WsConnection.Handler() {
+            @Override
+            public void onOpen(WsConnection conn, String subProtocol) {
+                for (int i = 0; i < MESSAGES / 2; i++) {
+                    conn.send(testText);
+                    conn.send(testBytes);
+                }
+            }
+
+            @Override
+            public void onMessage(WsConnection conn, WsMessage msg) {
+                boolean ok = msg.isText() ? msg.asString().equals(testText)
+                        : Arrays.equals(msg.asByteArray(), testBytes);
+                synchronized (WsSelectorTest.class) {
+                    if (ok) {
+                        received++;
+                    } else {
+                        errors++;
+                    }
+                }
+            }
+
+            @Override
+            public void onError(WsConnection conn, Throwable e) {
+                synchronized (WsSelectorTest.class) {
+                    errors++;
+                }
+            }
+
+            @Override
+            public void onClose(WsConnection conn, WsStatus status) {
+            }
+        };
+
+        WebSocket webSocket = new WebSocket();
+        WsParameters wsp = new WsParameters()
+                .setSelectors(selectors)
+                .setAcceptors(Integer.getInteger("acceptors", 2), true)
+                .setPayloadBufferLength(200) // fragmented messages
+                .setMaxMessages(MESSAGES)
+                .setSendQueue(MESSAGES, WsParameters.SEND_QUEUE_FAIL)
+                .setConnectionSoTimeout(1000, true);
+        WsServer server = webSocket.startServer(PORT, serverHandler, wsp).ready();
+        logTest(1, "Server started", server.isActive());
+
+        log(format("\r\n2. %d connections, %d messages each", CONNECTIONS, MESSAGES));
+        long started = System.currentTimeMillis();
+        for (int i = 0; i < CONNECTIONS; i++) {
+            webSocket.connectAsync(uri, clientHandler, wsp);
+        }
+        for (int i = 0; i < 20 && received < CONNECTIONS * MESSAGES; i++) {
+            sleep(DELAY);
+        }
+        log(format("Echoed: %d Received: %d Errors: %d Time: %d ms",
+                echoed, received, errors, System.currentTimeMillis() - started));
+        logTest(2, "Echo", received == CONNECTIONS * MESSAGES && errors == 0);
+        logTest(2, "Server connections", server.listConnections().length == CONNECTIONS);
+
+        log("\r\n3. Idle connections with ping (3 sec)");
+        sleep(3000);
+        logTest(3, "Ping", server.listConnections().length == CONNECTIONS
+                && errors == 0);
+
+        log("\r\n4. Invalid UTF-8 text");
+        WsConnection conn = webSocket.connect(uri, clientHandler, wsp).ready();
+        byte[] invalid = {'a', 'b', (byte) 0xED, (byte) 0xA0, (byte) 0x80}; // surrogate
+        conn.send(invalid, 0, invalid.length, true);
+        conn.join(DELAY * 4);
+        logTest(4, "Closed with 1007", conn.getStatus().code == WsStatus.INVALID_FRAME);
+
+        log("\r\n5. Inbound budget, one message at a time, slow handler");
+        WsParameters budgetWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(1)
+                .setInboundBudget(BIG_LENGTH, BIG_LENGTH / 4); // less than a message
+        logTest(5, "Budget round trip", roundTrip(webSocket, PORT + 1, budgetWsp,
+                bigText, bigBytes, MESSAGES, DELAY / 10));
+
+        log("\r\n6. Messages spilled to temp files");
+        WsParameters spillWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES)
+                .setSpill(BIG_LENGTH / 4, null);
+        logTest(6, "Spill round trip", roundTrip(webSocket, PORT + 2, spillWsp,
+                bigText, bigBytes, MESSAGES, 0));
+
+        log("\r\n7. Batch and delay flush policies, socket options");
+        WsParameters batchWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES * 10)
+                .setFlushPolicy(WsParameters.FLUSH_BATCH, 16384, 0)
+                .setSocketOptions(true, 65536, 65536);
+        logTest(7, "Batch flush round trip", roundTrip(webSocket, PORT + 3, batchWsp,
+                testText, testBytes, MESSAGES * 10, 0));
+        WsParameters delayWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES * 10)
+                .setFlushPolicy(WsParameters.FLUSH_DELAY, 16384, 1000)
+                .setSocketOptions(true, 65536, 65536);
+        logTest(7, "Delay flush round trip", roundTrip(webSocket, PORT + 4, delayWsp,
+                testText, testBytes, MESSAGES * 10, 0));
+
+        log("\r\n8. Handler executor, inline dispatch, virtual threads");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        WsParameters executorWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES)
+                .setExecutor(executor);
+        logTest(8, "Executor round trip", roundTrip(webSocket, PORT + 5, executorWsp,
+                bigText, bigBytes, MESSAGES, 0));
+        executor.shutdown();
+        WsParameters inlineWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES)
+                .setInlineDispatch(true);
+        logTest(8, "Inline dispatch round trip", roundTrip(webSocket, PORT + 6, inlineWsp,
+                bigText, bigBytes, MESSAGES, 0));
+        WsParameters virtualWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES)
+                .setVirtualThreads(true);
+        logTest(8, format("Virtual threads round trip (supported: %b)",
+                WsParameters.isVirtualThreadsSupported()),
+                roundTrip(webSocket, PORT + 7, virtualWsp, bigText, bigBytes, MESSAGES, 0));
+
+        log("\r\n9. Keepalive ping RTT (1 sec)");
+        WsConnection.Handler idleHandler = new WsConnection.Handler() {
+            @Override
+            public void onOpen(WsConnection conn, String subProtocol) {
+            }
+
+            @Override
+            public void onMessage(WsConnection conn, WsMessage msg) {
+            }
+
+            @Override
+            public void onError(WsConnection conn, Throwable e) {
+            }
+
+            @Override
+            public void onClose(WsConnection conn, WsStatus status) {
+            }
+        };
+        WsParameters pingWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setPingInterval(100, 20);
+        WsServer pingServer = webSocket.startServer(PORT + 8, idleHandler, pingWsp).ready();
+        conn = webSocket.connect("ws://localhost:" + (PORT + 8), idleHandler, pingWsp).ready();
+        sleep(DELAY * 2);
+        for (WsConnection c : new WsConnection[]{conn, pingServer.listConnections()[0]}) {
+            log(format("%s RTT last: %d min: %d smoothed: %d microseconds",
+                    c.isClientSide() ? "Client" : "Server",
+                    c.getLastRtt(), c.getMinRtt(), c.getSmoothedRtt()));
+            logTest(9, "RTT measured", c.getLastRtt() >= 0
+                    && c.getMinRtt() >= 0 && c.getMinRtt() <= c.getLastRtt()
+                    && c.getSmoothedRtt() >= 0);
+        }
+        conn.close();
+        pingServer.stopServer();
+
+        log("\r\n10. Broadcast, prepared messages");
+        int receivedBefore = received;
+        int errorsBefore = errors; // the invalid UTF-8 error of step 4
+        int broadcasted = server.broadcast(testText);
+        WsPreparedMessage prepared = new WsPreparedMessage(testBytes, false);
+        broadcasted += server.broadcast(prepared, new WsServer.Filter() {
+            @Override
+            public boolean accept(WsConnection conn) {
+                return conn.getConnectionId() % 2 == 0;
+            }
+        });
+        for (WsConnection c : server.getConnections()) {
+            c.send(prepared);
+        }
+        for (WsConnection c : webSocket.getConnections()) {
+            if (c.isOpen()) {
+                c.send(prepared); // masked by the client, echoed by the server
+                break;
+            }
+        }
+        int expected = broadcasted + CONNECTIONS + 1;
+        for (int i = 0; i < 20 && received - receivedBefore < expected; i++) {
+            sleep(DELAY);
+        }
+        log(format("Broadcasted: %d Received: %d Errors: %d",
+                broadcasted, received - receivedBefore, errors - errorsBefore));
+        logTest(10, "Broadcast", broadcasted > CONNECTIONS
+                && broadcasted < CONNECTIONS * 2);
+        logTest(10, "Prepared message", received - receivedBefore == expected
+                && errors == errorsBefore);
+
+        log("\r\n11. Connection registry lookup");
+        int serverFound = 0;
+        for (WsConnection c : server.getConnections()) {
+            if (server.getConnection(c.getConnectionId()) == c
+                    && webSocket.getConnection(c.getConnectionId()) == null) {
+                serverFound++;
+            }
+        }
+        int clientFound = 0;
+        for (WsConnection c : webSocket.getConnections()) {
+            if (webSocket.getConnection(c.getConnectionId()) == c
+                    && server.getConnection(c.getConnectionId()) == null) {
+                clientFound++;
+            }
+        }
+        log(format("Server-side: %d Client: %d", serverFound, clientFound));
+        logTest(11, "Server-side connections by id", serverFound == CONNECTIONS
+                && server.getConnections().size() == CONNECTIONS
+                && server.getConnection(-1L) == null);
+        logTest(11, "Client connections by id", clientFound >= CONNECTIONS
+                && clientFound == webSocket.getConnections().size());
+        boolean unmodifiable = false;
+        try {
+            server.getConnections().clear();
+        } catch (UnsupportedOperationException e) {
+            unmodifiable = true;
+        }
+        logTest(11, "Unmodifiable view", unmodifiable
+                && server.getConnections().size() == CONNECTIONS);
+
+        log("\r\n12. Message read paths");
+        WsParameters readWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES);
+        logTest(12, "CharSequence and ByteBuffer, single chunk",
+                roundTrip(webSocket, PORT + 9, readWsp, testText, testBytes,
+                        MESSAGES, 0, SEND_DEFAULT, READ_BUFFERS));
+        logTest(12, "CharSequence and ByteBuffer, chunked",
+                roundTrip(webSocket, PORT + 10, readWsp, bigText, bigBytes,
+                        MESSAGES, 0, SEND_DEFAULT, READ_BUFFERS));
+        logTest(12, "Reader and transferTo, chunked",
+                roundTrip(webSocket, PORT + 11, readWsp, bigText, bigBytes,
+                        MESSAGES, 0, SEND_DEFAULT, READ_STREAMS));
+
+        log("\r\n13. Send buffers, slices and CharSequence, surrogate pairs across frames");
+        sb = new StringBuilder();
+        while (sb.length() < 3000) {
+            sb.append("a\uD83D\uDE00\u0439\uD83C\uDF0D"); // 1, 4, 2 and 4 UTF-8 bytes
+        }
+        String pairsText = sb.toString();
+        WsParameters sendWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES)
+                .setPayloadBufferLength(201); // splits the UTF-8 sequences of slices
+        logTest(13, "CharSequence and ByteBuffer sends",
+                roundTrip(webSocket, PORT + 12, sendWsp, pairsText, bigBytes,
+                        MESSAGES, 0, SEND_BUFFERS, READ_DEFAULT));
+        logTest(13, "Array slice sends",
+                roundTrip(webSocket, PORT + 13, sendWsp, pairsText, bigBytes,
+                        MESSAGES, 0, SEND_SLICES, READ_BUFFERS));
+
+        log("\r\n14. File region sends");
+        File tempFile = File.createTempFile("WsSelectorTest", null);
+        tempFile.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        raf.write(testBytes, 0, FILE_POS);
+        raf.write(bigBytes);
+        raf.write(testBytes, 0, FILE_POS);
+        sendFile = raf.getChannel();
+        long filePosition = sendFile.position();
+// the file sends wait for the socket: do not block the selector loop
+        ExecutorService fileExecutor = Executors.newFixedThreadPool(2);
+        WsParameters fileWsp = new WsParameters()
+                .setSelectors(selectors)
+                .setMaxMessages(MESSAGES)
+                .setExecutor(fileExecutor);
+        logTest(14, "FileChannel sends", roundTrip(webSocket, PORT + 14, fileWsp,
+                testText, bigBytes, MESSAGES, 0, SEND_FILE, READ_DEFAULT));
+        fileWsp.setFlushPolicy(WsParameters.FLUSH_DELAY, 16384, 1000);
+        logTest(14, "FileChannel sends, delay flush", roundTrip(webSocket, PORT + 15,
+                fileWsp, testText, bigBytes, MESSAGES, 0, SEND_FILE, READ_DEFAULT));
+        logTest(14, "File position not changed", sendFile.position() == filePosition);
+        fileExecutor.shutdown();
+        raf.close();
+        tempFile.delete();
+
+        log("\r\n15. Close all");
+        webSocket.closeAll();
+        server.join();
+        for (int i = 0; i < 10 && server.listConnections().length > 0; i++) {
+            sleep(DELAY);
+        }
+        logTest(15, format("Server-side connections closed (%d)", serverClosed),
+                server.listConnections().length == 0
+                && serverClosed == CONNECTIONS + 1);
+        log("\r\nCompleted");
+    }
+}
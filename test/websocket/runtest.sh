@@ -7,10 +7,15 @@ if [ -f ./WebSocket.jar ]; then
   javac -Xlint -cp ./WebSocket.jar WssBasicTest.java
   javac -cp ./WebSocket.jar WssClientTest.java
   javac -cp ./WebSocket.jar WsStressTest.java
+  javac -cp ./WebSocket.jar WsSelectorTest.java
+  javac -cp ./WebSocket.jar WsMaskTest.java
   java -cp ./WebSocket.jar:. WssBasicTest
   java -cp ./WebSocket.jar:. WssClientTest
   java -cp ./WebSocket.jar:. WsServerTest
   java -cp ./WebSocket.jar:. WsStressTest
+  java -cp ./WebSocket.jar:. WsSelectorTest
+  java -cp ./WebSocket.jar:. -Dselectors=0 WsSelectorTest
+  java -cp ./WebSocket.jar:. WsMaskTest
   rm -f *.class
 else
   echo First make the ./WebSocket.jar file